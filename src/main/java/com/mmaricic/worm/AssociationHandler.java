@@ -1,76 +1,115 @@
 package com.mmaricic.worm;
 
+import com.mmaricic.worm.EntityMetadata.AssociationMetadata;
+import com.mmaricic.worm.EntityMetadata.ColumnMetadata;
 import com.mmaricic.worm.exceptions.*;
-import net.sf.cglib.proxy.Enhancer;
 
 import javax.persistence.*;
 import java.beans.IntrospectionException;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
-import java.lang.reflect.*;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.util.*;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 
 class AssociationHandler {
+    static final String JOIN_ALIAS_SEPARATOR = "__";
+
+    private static final Map<AssociationMetadata, String> foreignKeyColumns = new ConcurrentHashMap<>();
+    private static final Map<AssociationMetadata, ManyToManyTableId> joinTables = new ConcurrentHashMap<>();
+
     private final EntityManager em;
     private final EntityParser ep;
+    private boolean lazyOnly = false;
 
-    AssociationHandler(EntityManager entityManager) {
+    AssociationHandler(EntityManager entityManager, EntityParser entityParser) {
         em = entityManager;
-        ep = new EntityParser();
+        ep = entityParser;
     }
 
     Map<String, Object> getAssociatedParentsIds(Object entity) throws EntityException, EntityIdException {
         Map<String, Object> ids = new LinkedHashMap<>();
-        try {
-            if (ep.isIddAnnotationOnField(entity.getClass())) {
-                List<Field> associations = Stream.of(entity.getClass().getDeclaredFields())
-                        .filter(this::isParentAssociation)
-                        .collect(Collectors.toList());
-
-                for (Field assocField : associations) {
-                    assocField.setAccessible(true);
-                    Object parent = assocField.get(entity);
-                    AbstractMap.SimpleEntry<String, Object> parentId =
-                            getParentId(parent, assocField, assocField.getType(), entity.getClass());
-                    ids.put(parentId.getKey(), parentId.getValue());
-                }
-            } else {
-                List<Method> associations = Stream
-                        .of(Introspector.getBeanInfo(entity.getClass(), Object.class).getPropertyDescriptors())
-                        .map(PropertyDescriptor::getReadMethod)
-                        .filter(this::isParentAssociation)
-                        .collect(Collectors.toList());
-
-                for (Method getMethod : associations) {
-                    Object parent = getMethod.invoke(entity);
-                    AbstractMap.SimpleEntry<String, Object> parentId =
-                            getParentId(parent, getMethod, getMethod.getReturnType(), entity.getClass());
-                    ids.put(parentId.getKey(), parentId.getValue());
-                }
-            }
-        } catch (IllegalAccessException | IntrospectionException | InvocationTargetException e) {
-            e.printStackTrace();
+        for (AssociationMetadata association : EntityMetadata.of(entity.getClass()).getAssociations()) {
+            if (!association.isParent())
+                continue;
+            Object parent = association.get(entity);
+            Object value = null;
+            if (parent != null)
+                value = extractForeignKeyValue(parent, entity.getClass());
+            ids.put(getForeignKeyColumnName(association), value);
         }
         return ids;
     }
 
-    private AbstractMap.SimpleEntry<String, Object> getParentId(
-            Object parent, AnnotatedElement parentAnnotation, Class<?> parentClass, Class<?> entityClass) {
-        Object value = null;
-        String key = extractForeignKeyColumnName(parentAnnotation, parentClass, entityClass);
-        if (parent != null) {
-            value = extractForeignKeyValue(parent, entityClass);
+    List<String> getParentForeignKeyColumns(Class<?> entityClass) throws EntityException {
+        List<String> columns = new ArrayList<>();
+        for (AssociationMetadata association : EntityMetadata.of(entityClass).getAssociations()) {
+            if (association.isParent())
+                columns.add(getForeignKeyColumnName(association));
+        }
+        return columns;
+    }
+
+    /**
+     * Select list of a query from the entity's table alone, which loads entities of the given class without
+     * their lazy columns and with the given key columns. Entities without lazy columns, and inherited ones whose
+     * rows may be of subclasses with other columns, are loaded with all the columns of their table.
+     */
+    String selectColumns(Class<?> entityClass, String... keyColumns) throws EntityIdException {
+        return qualifiedSelectColumns(entityClass, null, keyColumns);
+    }
+
+    /**
+     * Same as {@link #selectColumns(Class, String...)}, with columns qualified by the given table name or alias
+     * for queries that join other tables.
+     */
+    private String qualifiedSelectColumns(Class<?> entityClass, String qualifier, String... keyColumns)
+            throws EntityIdException {
+        EntityMetadata metadata = EntityMetadata.of(entityClass);
+        String prefix = qualifier == null ? "" : qualifier + ".";
+        if (metadata.isDiscriminated() || !metadata.hasLazyColumns())
+            return prefix + "*";
+
+        Set<String> columns = new LinkedHashSet<>(selectedColumnNames(entityClass));
+        columns.addAll(Arrays.asList(keyColumns));
+        StringJoiner select = new StringJoiner(", ");
+        for (String column : columns) {
+            select.add(prefix + column);
+        }
+        return select.toString();
+    }
+
+    /**
+     * Mapped columns without the lazy ones, with foreign keys of parent associations.
+     */
+    private List<String> selectedColumnNames(Class<?> entityClass) throws EntityIdException {
+        EntityMetadata metadata = EntityMetadata.of(entityClass);
+        List<String> columns = metadata.getColumnNames();
+        if (!metadata.isDiscriminated()) {
+            for (ColumnMetadata column : metadata.getColumns()) {
+                if (column.isLazy())
+                    columns.remove(column.getName());
+            }
         }
-        return new AbstractMap.SimpleEntry<>(key, value);
+        columns.addAll(getParentForeignKeyColumns(entityClass));
+        return columns;
+    }
+
+    String findByIdQuery(Class<?> entityClass) throws EntityIdException {
+        String tableName = ep.extractTableName(entityClass);
+        String idColumn = ep.extractIdColumnName(entityClass);
+        String columns = selectColumns(entityClass);
+        if (columns.equals("*"))
+            return QueryBuilder.buildFindByIdQuery(tableName, idColumn);
+        return QueryBuilder.buildSelectInQuery(tableName, columns, idColumn, 1);
     }
 
-    private boolean isParentAssociation(AnnotatedElement ae) {
-        return ae != null
-                && (ae.getAnnotation(ManyToOne.class) != null
-                || (ae.getAnnotation(OneToOne.class) != null
-                && ae.getAnnotation(OneToOne.class).mappedBy().equals("")));
+    private String getForeignKeyColumnName(AssociationMetadata association) {
+        return foreignKeyColumns.computeIfAbsent(association, a -> extractForeignKeyColumnName(
+                a.getElement(), a.getTargetType(), a.getOwnerClass()));
     }
 
     private String extractForeignKeyColumnName(AnnotatedElement ae, Class<?> annotatedElementClass, Class<?> entityClass) {
@@ -118,85 +157,50 @@ class AssociationHandler {
     }
 
     boolean saveAssociations(Object entity) throws EntityIdException {
-        try {
-            if (ep.isIddAnnotationOnField(entity.getClass())) {
-                List<Field> associations = Stream.of(entity.getClass().getDeclaredFields())
-                        .filter(this::isChildAssociation)
-                        .collect(Collectors.toList());
-                for (Field assocField : associations) {
-                    assocField.setAccessible(true);
-                    Object fieldValue = assocField.get(entity);
-
-                    if (!saveSingleAssociation(fieldValue, assocField, entity))
-                        return false;
-                }
-                return true;
-            }
-
-            List<Method> associations = Stream
-                    .of(Introspector.getBeanInfo(entity.getClass(), Object.class).getPropertyDescriptors())
-                    .map(PropertyDescriptor::getReadMethod)
-                    .filter(this::isChildAssociation)
-                    .collect(Collectors.toList());
-            for (Method getMethod : associations) {
-                Object fieldValue = getMethod.invoke(entity);
-
-                if (!saveSingleAssociation(fieldValue, getMethod, entity))
-                    return false;
-            }
-            return true;
+        return saveAssociations(entity, EntityMetadata.of(entity.getClass()).getAssociations());
+    }
 
-        } catch (IllegalAccessException | InvocationTargetException | IntrospectionException e) {
-            e.printStackTrace();
+    boolean saveAssociations(Object entity, Collection<AssociationMetadata> associations) throws EntityIdException {
+        for (AssociationMetadata association : associations) {
+            if (!association.isChild())
+                continue;
+            if (!saveSingleAssociation(association.get(entity), association, entity))
+                return false;
         }
-        return false;
+        return true;
     }
 
-    private boolean saveSingleAssociation(Object fieldValue, AnnotatedElement fieldAnnot, Object entity) {
-        Set<CascadeType> cascades = getCascadeTypes(fieldAnnot);
+    private boolean saveSingleAssociation(Object fieldValue, AssociationMetadata association, Object entity) {
+        Set<CascadeType> cascades = association.getCascades();
         if (!cascades.contains(CascadeType.ALL) && !cascades.contains(CascadeType.PERSIST))
             return true;
 
         if (fieldValue == null)
             return true;
 
-        if (Collection.class.isAssignableFrom(fieldValue.getClass()))
-            return saveCollection(entity, fieldValue, fieldAnnot);
+        if (fieldValue instanceof Collection)
+            return saveCollection(entity, (Collection<?>) fieldValue, association);
 
-        String key = extractForeignKeyColumnName(fieldAnnot, fieldValue.getClass(), entity.getClass());
+        String key = getForeignKeyColumnName(association);
         Object value = extractForeignKeyValue(entity, entity.getClass());
         return updateChild(fieldValue, new HashMap<>(Map.of(key, value)));
     }
 
-    private boolean saveCollection(Object entity, Object fieldValue, AnnotatedElement fieldAnnot) {
-        if (fieldAnnot.getAnnotation(ManyToMany.class) != null) {
-            for (Object child : (Collection) fieldValue) {
-                if (ep.extractId(child).getValue() == null) {
-                    em.save(child);
-                }
-
-                ManyToManyTableId association = getManyToManyTableAndCols(entity.getClass(), child.getClass(), fieldAnnot);
-                Object entityColValue = ep.extractId(entity).getValue();
-                Object childColValue = ep.extractId(child).getValue();
-                List<Map<String, Object>> res = em.query(String.format("SELECT * FROM %s WHERE %s=%s AND %s=%s;",
-                        association.tableName,
-                        association.entityCol, entityColValue,
-                        association.childCol, childColValue));
-
-                if (res.isEmpty()) {
-
-                    LinkedHashSet<String> vals = new LinkedHashSet<>();
-                    vals.add(association.entityCol);
-                    vals.add(association.childCol);
-                    String query = QueryBuilder.buildInsertQuery(association.tableName, vals);
-                    em.executeUpdate(query, entityColValue, childColValue);
-                }
+    private boolean saveCollection(Object entity, Collection<?> children, AssociationMetadata association) {
+        if (association.isManyToMany()) {
+            List<Object> unsaved = new ArrayList<>();
+            for (Object child : children) {
+                if (ep.extractId(child).getValue() == null)
+                    unsaved.add(child);
             }
+            if (!unsaved.isEmpty() && !em.saveAll(unsaved))
+                return false;
+            synchronizeLinks(entity, children, association);
             return true;
         }
 
-        for (Object child : (Collection) fieldValue) {
-            String key = extractForeignKeyColumnName(fieldAnnot, child.getClass(), entity.getClass());
+        String key = getForeignKeyColumnName(association);
+        for (Object child : children) {
             Object value = extractForeignKeyValue(entity, entity.getClass());
             if (!updateChild(child, new HashMap<>(Map.of(key, value))))
                 return false;
@@ -204,6 +208,11 @@ class AssociationHandler {
         return true;
     }
 
+    private ManyToManyTableId getManyToManyTableAndCols(AssociationMetadata association) {
+        return joinTables.computeIfAbsent(association, a -> getManyToManyTableAndCols(
+                a.getOwnerClass(), a.getTargetType(), a.getElement()));
+    }
+
     private ManyToManyTableId getManyToManyTableAndCols(Class<?> entityClass, Class<?> childClass, AnnotatedElement ae)
             throws EntityIdException, EntityException {
         ManyToManyTableId ids = new ManyToManyTableId();
@@ -273,18 +282,6 @@ class AssociationHandler {
         return "";
     }
 
-    private Set<CascadeType> getCascadeTypes(AnnotatedElement ae) {
-        OneToMany oneToMany = ae.getAnnotation(OneToMany.class);
-        if (oneToMany != null)
-            return new HashSet<>(Arrays.asList(oneToMany.cascade()));
-        OneToOne oneToOne = ae.getAnnotation(OneToOne.class);
-        if (oneToOne != null)
-            return new HashSet<>(Arrays.asList(oneToOne.cascade()));
-
-        return new HashSet<>(Arrays.asList(ae.getAnnotation(ManyToMany.class).cascade()));
-
-    }
-
     private boolean updateChild(Object child, Map<String, Object> associationId)
             throws EntityIdException, EntityException, AnnotationException, EntityLoaderException, QueryException {
         if (child == null) {
@@ -298,359 +295,501 @@ class AssociationHandler {
     }
 
     void deleteAssociations(Object entity) throws EntityIdException {
-        try {
-            if (ep.isIddAnnotationOnField(entity.getClass())) {
-                List<Field> associations = Stream.of(entity.getClass().getDeclaredFields())
-                        .filter(this::isChildAssociation)
-                        .collect(Collectors.toList());
-
-                for (Field assocField : associations) {
-                    assocField.setAccessible(true);
-                    Object fieldValue = assocField.get(entity);
-                    if (fieldValue == null)
-                        continue;
-                    if (Collection.class.isAssignableFrom(fieldValue.getClass()))
-                        for (Object child : (Collection) fieldValue)
-                            deleteSingleAssociation(child, assocField, entity);
-                    else
-                        deleteSingleAssociation(fieldValue, assocField, entity);
-                }
-                return;
-            }
-            List<Method> associations = Stream
-                    .of(Introspector.getBeanInfo(entity.getClass(), Object.class).getPropertyDescriptors())
-                    .map(PropertyDescriptor::getReadMethod)
-                    .filter(this::isChildAssociation)
-                    .collect(Collectors.toList());
-
-            for (Method getMethod : associations) {
-                Object fieldValue = getMethod.invoke(entity);
-                if (fieldValue == null)
-                    continue;
-                if (Collection.class.isAssignableFrom(getMethod.getReturnType()))
-                    for (Object child : (Collection) fieldValue)
-                        deleteSingleAssociation(child, getMethod, entity);
-                else
-                    deleteSingleAssociation(fieldValue, getMethod, entity);
-            }
-        } catch (IllegalAccessException | InvocationTargetException | IntrospectionException e) {
-            e.printStackTrace();
+        for (AssociationMetadata association : EntityMetadata.of(entity.getClass()).getAssociations()) {
+            if (!association.isChild())
+                continue;
+            Object fieldValue = association.get(entity);
+            if (fieldValue == null)
+                continue;
+            if (fieldValue instanceof Collection)
+                for (Object child : (Collection<?>) fieldValue)
+                    deleteSingleAssociation(child, association, entity);
+            else
+                deleteSingleAssociation(fieldValue, association, entity);
         }
     }
 
-    private void deleteSingleAssociation(Object fieldValue, AnnotatedElement fieldAnnot, Object entity) {
-        Set<CascadeType> cascades = getCascadeTypes(fieldAnnot);
+    private void deleteSingleAssociation(Object fieldValue, AssociationMetadata association, Object entity) {
+        Set<CascadeType> cascades = association.getCascades();
         if (cascades.contains(CascadeType.ALL)
                 || cascades.contains(CascadeType.REMOVE)
-                || removeOrphans(fieldAnnot))
+                || association.isOrphanRemoval())
             em.delete(fieldValue);
 
-        if (fieldAnnot.getAnnotation(ManyToMany.class) != null) {
+        if (association.isManyToMany()) {
             Object entityColValue = ep.extractId(entity).getValue();
-            ManyToManyTableId association = getManyToManyTableAndCols(entity.getClass(), fieldValue.getClass(), fieldAnnot);
+            ManyToManyTableId joinTable = getManyToManyTableAndCols(association);
             em.executeUpdate(QueryBuilder.buildDeleteQuery(
-                    association.tableName, association.entityCol), entityColValue);
+                    joinTable.tableName, joinTable.entityCol), entityColValue);
+            em.evict(association.getTargetType());
         }
     }
 
-    private boolean removeOrphans(AnnotatedElement ae) {
-        OneToMany oneToMany = ae.getAnnotation(OneToMany.class);
-        if (oneToMany != null)
-            return oneToMany.orphanRemoval();
-        OneToOne oneToOne = ae.getAnnotation(OneToOne.class);
-        if (oneToOne != null)
-            return oneToOne.orphanRemoval();
-
-        return false;
+    void fetchAssociations(Object entity, Map<String, Object> entityMap) throws EntityIdException {
+        fetchAssociations(entity, entityMap, Collections.emptySet());
     }
 
+    private void fetchAssociations(Object entity, Map<String, Object> entityMap, Set<AssociationMetadata> preloaded)
+            throws EntityIdException {
+        for (AssociationMetadata association : EntityMetadata.of(entity.getClass()).getAssociations()) {
+            if (!preloaded.contains(association))
+                association.set(entity, fetchAssociation(entity, association, entityMap));
+        }
+    }
 
-    void fetchAssociations(Object entity, Map<String, Object> entityMap) throws EntityIdException {
-        if (ep.isIddAnnotationOnField(entity.getClass())) {
-            List<Field> associations = Stream.of(entity.getClass().getDeclaredFields())
-                    .filter(this::isAssociation)
-                    .collect(Collectors.toList());
-            for (Field assocField : associations) {
-                try {
-                    assocField.setAccessible(true);
+    /**
+     * Fetches associations for all entities (of the same class) hydrated by one query. Each eager association
+     * is loaded with IN (...) queries over the keys of all entities instead of one query per entity.
+     */
+    <T> void fetchAssociations(List<? extends Map.Entry<T, Map<String, Object>>> rows,
+                               Set<AssociationMetadata> preloaded) throws EntityIdException {
+        if (rows.isEmpty())
+            return;
+        int batchSize = em.getBatchFetchSize();
+        if (batchSize <= 1) {
+            for (Map.Entry<T, Map<String, Object>> row : rows) {
+                fetchAssociations(row.getKey(), row.getValue(), preloaded);
+            }
+            return;
+        }
 
-                    if (assocField.getAnnotation(OneToMany.class) != null) {
-                        ParameterizedType collectionType = (ParameterizedType) assocField.getGenericType();
-                        Class<?> childrenType = (Class<?>) collectionType.getActualTypeArguments()[0];
-                        assocField.set(entity, fetchOneToMany(entity, assocField, childrenType));
-                    }
-                    if (assocField.getAnnotation(ManyToOne.class) != null
-                            || assocField.getAnnotation(OneToOne.class) != null
-                            && assocField.getAnnotation(OneToOne.class).mappedBy().isEmpty()) {
-                        assocField.set(entity, fetchParent(entity, assocField, assocField.getType(), entityMap));
-                    }
-                    if (assocField.getAnnotation(OneToOne.class) != null
-                            && !assocField.getAnnotation(OneToOne.class).mappedBy().isEmpty()) {
-                        assocField.set(entity, fetchOneToOne(entity, assocField, assocField.getType()));
-                    }
-                    if (assocField.getAnnotation(ManyToMany.class) != null) {
-                        ParameterizedType collectionType = (ParameterizedType) assocField.getGenericType();
-                        Class<?> childrenType = (Class<?>) collectionType.getActualTypeArguments()[0];
-                        assocField.set(entity, fetchManyToMany(entity, childrenType, assocField));
-                    }
-                } catch (IllegalAccessException e) {
-                    throw new EntityLoaderException(String.format("Field %s in class %s is inaccessible.",
-                            assocField.getName(), entity.getClass().getSimpleName()));
+        Class<?> entityClass = rows.get(0).getKey().getClass();
+        for (AssociationMetadata association : EntityMetadata.of(entityClass).getAssociations()) {
+            if (preloaded.contains(association))
+                continue;
+            if (!isEager(association)) {
+                for (Map.Entry<T, Map<String, Object>> row : rows) {
+                    Object entity = row.getKey();
+                    association.set(entity, fetchAssociation(entity, association, row.getValue()));
                 }
+            } else if (association.isOneToMany() || (association.isOneToOne() && !association.isParent())) {
+                batchFetchChildren(rows, association, batchSize);
+            } else if (association.isParent()) {
+                batchFetchParents(rows, association, batchSize);
+            } else if (association.isManyToMany()) {
+                batchFetchManyToMany(rows, association, batchSize);
             }
-            return;
         }
+    }
+
+    /**
+     * Builds the select and from clauses of a query which loads entityClass together with the given
+     * to-one associations through LEFT JOINs. The root table keeps its name, each joined table is aliased by
+     * {@link #joinAlias(int)} of its position and its columns are labeled as alias + JOIN_ALIAS_SEPARATOR + column.
+     */
+    String composeJoinFetchSelect(Class<?> entityClass, List<AssociationMetadata> joins) throws EntityIdException {
+        String tableName = ep.extractTableName(entityClass);
+        StringJoiner columns = new StringJoiner(", ");
+        columns.add(qualifiedSelectColumns(entityClass, tableName));
+        StringBuilder from = new StringBuilder(tableName);
+        for (int i = 0; i < joins.size(); i++) {
+            AssociationMetadata join = joins.get(i);
+            Class<?> targetType = join.getTargetType();
+            String alias = joinAlias(i);
+            List<String> targetColumns = selectedColumnNames(targetType);
+            for (String column : targetColumns) {
+                columns.add(alias + "." + column + " AS " + alias + JOIN_ALIAS_SEPARATOR + column);
+            }
+
+            from.append(" LEFT JOIN ").append(ep.extractTableName(targetType)).append(" ").append(alias).append(" ON ");
+            String foreignKey = getForeignKeyColumnName(join);
+            if (join.isParent())
+                from.append(alias).append(".").append(ep.extractIdColumnName(targetType))
+                        .append("=").append(tableName).append(".").append(foreignKey);
+            else
+                from.append(alias).append(".").append(foreignKey)
+                        .append("=").append(tableName).append(".").append(ep.extractIdColumnName(entityClass));
+        }
+        return "SELECT " + columns.toString() + " FROM " + from.toString();
+    }
+
+    /**
+     * Alias of the index-th table joined by composeJoinFetchSelect. Association names aren't used,
+     * since they can be reserved words or lose their case in the labels of some drivers.
+     */
+    static String joinAlias(int index) {
+        return "j" + index;
+    }
+
+    /**
+     * Runs work with every association fetched lazily, so it issues no queries, e.g. while the connection
+     * is busy reading a streamed result.
+     */
+    <R> R withLazyAssociations(Supplier<R> work) {
+        boolean previous = lazyOnly;
+        lazyOnly = true;
         try {
-            List<PropertyDescriptor> associations = Stream
-                    .of(Introspector.getBeanInfo(entity.getClass(), Object.class).getPropertyDescriptors())
-                    .filter(descriptor -> isAssociation(descriptor.getReadMethod()))
-                    .collect(Collectors.toList());
-
-            for (PropertyDescriptor descriptor : associations) {
-                Method getMethod = descriptor.getReadMethod();
-                Method setMehod = descriptor.getWriteMethod();
-                if (getMethod == null)
+            return work.get();
+        } finally {
+            lazyOnly = previous;
+        }
+    }
+
+    private boolean isEager(AssociationMetadata association) {
+        return !lazyOnly && association.getFetch() == FetchType.EAGER;
+    }
+
+    private Object fetchAssociation(Object entity, AssociationMetadata association, Map<String, Object> entityMap) {
+        if (association.isOneToMany())
+            return fetchOneToMany(entity, association);
+        if (association.isParent())
+            return fetchParent(entity, association, entityMap);
+        if (association.isOneToOne())
+            return fetchOneToOne(entity, association);
+        if (association.isManyToMany())
+            return fetchManyToMany(entity, association);
+        return null;
+    }
+
+    private <T> void batchFetchParents(
+            List<? extends Map.Entry<T, Map<String, Object>>> rows, AssociationMetadata association, int batchSize) {
+        Class<?> parentType = association.getTargetType();
+        String foreignKeyName = getForeignKeyColumnName(association);
+        Map<Object, Object> parents = new HashMap<>();
+        List<Object> idsToFetch = new ArrayList<>();
+        for (Map.Entry<T, Map<String, Object>> row : rows) {
+            Object id = row.getValue().get(foreignKeyName);
+            if (id == null || parents.containsKey(keyOf(id)))
+                continue;
+            Object parent = em.getFromCache(parentType, id);
+            parents.put(keyOf(id), parent);
+            if (parent == null)
+                idsToFetch.add(id);
+        }
+        Map<Object, ?> cached = em.findCached(parentType, idsToFetch);
+        if (!cached.isEmpty()) {
+            parents.putAll(cached);
+            idsToFetch.removeIf(id -> cached.containsKey(keyOf(id)));
+        }
+
+        String tableName = ep.extractTableName(parentType);
+        String idColumn = ep.extractIdColumnName(parentType);
+        String columns = selectColumns(parentType);
+        for (List<Object> chunk : chunks(idsToFetch, batchSize)) {
+            Object[] params = padded(chunk, batchSize);
+            String sql = QueryBuilder.buildSelectInQuery(tableName, columns, idColumn, params.length);
+            for (Object parent : em.preparedQuery(parentType, sql, params)) {
+                parents.put(keyOf(ep.extractId(parent).getValue()), parent);
+            }
+        }
+
+        for (Map.Entry<T, Map<String, Object>> row : rows) {
+            Object id = row.getValue().get(foreignKeyName);
+            association.set(row.getKey(), id == null ? null : parents.get(keyOf(id)));
+        }
+    }
+
+    private <T> void batchFetchChildren(
+            List<? extends Map.Entry<T, Map<String, Object>>> rows, AssociationMetadata association, int batchSize) {
+        Class<?> childType = association.getTargetType();
+        String foreignKeyName = getForeignKeyColumnName(association);
+        String tableName = ep.extractTableName(childType);
+
+        String columns = selectColumns(childType, foreignKeyName);
+        Map<Object, List<Object>> children = new HashMap<>();
+        for (List<Object> chunk : chunks(distinctIds(rows), batchSize)) {
+            Object[] params = padded(chunk, batchSize);
+            String sql = QueryBuilder.buildSelectInQuery(tableName, columns, foreignKeyName, params.length);
+            for (AbstractMap.SimpleEntry<?, Object> child : em.preparedQueryWithKey(childType, foreignKeyName, sql, params)) {
+                children.computeIfAbsent(keyOf(child.getValue()), k -> new ArrayList<>()).add(child.getKey());
+            }
+        }
+
+        for (Map.Entry<T, Map<String, Object>> row : rows) {
+            Object entity = row.getKey();
+            Object id = ep.extractId(entity).getValue();
+            List<Object> entityChildren = id == null ? null : children.get(keyOf(id));
+            if (association.isOneToMany())
+                association.set(entity, entityChildren == null ? new ArrayList<>() : new ArrayList<>(entityChildren));
+            else
+                association.set(entity, entityChildren == null ? null : entityChildren.get(0));
+        }
+    }
+
+    private <T> void batchFetchManyToMany(
+            List<? extends Map.Entry<T, Map<String, Object>>> rows, AssociationMetadata association, int batchSize) {
+        Class<?> childType = association.getTargetType();
+        ManyToManyTableId joinTable = getManyToManyTableAndCols(association);
+
+        Map<Object, List<Object>> childIds = new HashMap<>();
+        Map<Object, Object> children = new HashMap<>();
+        List<Object> idsToFetch = new ArrayList<>();
+        for (List<Object> chunk : chunks(distinctIds(rows), batchSize)) {
+            Object[] params = padded(chunk, batchSize);
+            String sql = QueryBuilder.buildSelectInQuery(joinTable.tableName,
+                    joinTable.entityCol + ", " + joinTable.childCol, joinTable.entityCol, params.length);
+            for (Map<String, Object> link : em.preparedQuery(sql, params)) {
+                Object childId = link.get(joinTable.childCol);
+                childIds.computeIfAbsent(keyOf(link.get(joinTable.entityCol)), k -> new ArrayList<>()).add(childId);
+                if (children.containsKey(keyOf(childId)))
                     continue;
-                Object value = null;
+                Object child = em.getFromCache(childType, childId);
+                children.put(keyOf(childId), child);
+                if (child == null)
+                    idsToFetch.add(childId);
+            }
+        }
 
-                if (getMethod.getAnnotation(OneToMany.class) != null) {
-                    ParameterizedType collectionType = (ParameterizedType) getMethod.getGenericReturnType();
-                    Class<?> childrenType = (Class<?>) collectionType.getActualTypeArguments()[0];
-                    value = fetchOneToMany(entity, getMethod, childrenType);
-                }
-                if (getMethod.getAnnotation(ManyToOne.class) != null
-                        || getMethod.getAnnotation(OneToOne.class) != null
-                        && getMethod.getAnnotation(OneToOne.class).mappedBy().isEmpty()) {
-                    value = fetchParent(entity, getMethod, getMethod.getReturnType(), entityMap);
-                }
-                if (getMethod.getAnnotation(OneToOne.class) != null
-                        && !getMethod.getAnnotation(OneToOne.class).mappedBy().isEmpty()) {
-                    value = fetchOneToOne(entity, getMethod, getMethod.getReturnType());
-                }
-                if (getMethod.getAnnotation(ManyToMany.class) != null) {
-                    ParameterizedType collectionType = (ParameterizedType) getMethod.getGenericReturnType();
-                    Class<?> childrenType = (Class<?>) collectionType.getActualTypeArguments()[0];
-                    value = fetchManyToMany(entity, childrenType, getMethod);
-                }
-                if (setMehod != null)
-                    setMehod.invoke(entity, value);
-                else {
-                    Field f = entity.getClass().getDeclaredField(descriptor.getName());
-                    f.setAccessible(true);
-                    f.set(entity, value);
-                }
+        String tableName = ep.extractTableName(childType);
+        String idColumn = ep.extractIdColumnName(childType);
+        String columns = selectColumns(childType);
+        for (List<Object> chunk : chunks(idsToFetch, batchSize)) {
+            Object[] params = padded(chunk, batchSize);
+            String sql = QueryBuilder.buildSelectInQuery(tableName, columns, idColumn, params.length);
+            for (Object child : em.preparedQuery(childType, sql, params)) {
+                children.put(keyOf(ep.extractId(child).getValue()), child);
+            }
+        }
+
+        for (Map.Entry<T, Map<String, Object>> row : rows) {
+            Object entity = row.getKey();
+            List<Object> entityChildren = new ArrayList<>();
+            Object id = ep.extractId(entity).getValue();
+            for (Object childId : childIds.getOrDefault(keyOf(id), Collections.emptyList())) {
+                Object child = children.get(keyOf(childId));
+                if (child != null)
+                    entityChildren.add(child);
             }
-        } catch (IntrospectionException | IllegalAccessException | InvocationTargetException | NoSuchFieldException e) {
-            throw new EntityLoaderException("An error occurred while trying to set association fields for "
-                    + entity.getClass().getSimpleName() + "entity: " + e.getMessage());
+            association.set(entity, entityChildren);
+        }
+    }
+
+    private <T> List<Object> distinctIds(List<? extends Map.Entry<T, Map<String, Object>>> rows) {
+        Set<Object> keys = new HashSet<>();
+        List<Object> ids = new ArrayList<>();
+        for (Map.Entry<T, Map<String, Object>> row : rows) {
+            Object id = ep.extractId(row.getKey()).getValue();
+            if (id != null && keys.add(keyOf(id)))
+                ids.add(id);
         }
+        return ids;
+    }
+
+    static List<List<Object>> chunks(List<Object> values, int batchSize) {
+        List<List<Object>> chunks = new ArrayList<>();
+        for (int i = 0; i < values.size(); i += batchSize) {
+            chunks.add(values.subList(i, Math.min(i + batchSize, values.size())));
+        }
+        return chunks;
+    }
+
+    /**
+     * Pads the chunk to the next power of two (capped by the batch size) by repeating its last value,
+     * so only a handful of distinct IN (...) statements are ever prepared.
+     */
+    static Object[] padded(List<Object> chunk, int batchSize) {
+        int size = Integer.highestOneBit(chunk.size());
+        if (size < chunk.size())
+            size <<= 1;
+        size = Math.min(size, batchSize);
+        Object[] params = new Object[size];
+        for (int i = 0; i < size; i++) {
+            params[i] = chunk.get(Math.min(i, chunk.size() - 1));
+        }
+        return params;
+    }
+
+    /**
+     * Ids read from the database may come back with a different integral type than the id field has.
+     */
+    static Object keyOf(Object id) {
+        if (id instanceof Integer || id instanceof Long || id instanceof Short || id instanceof Byte)
+            return ((Number) id).longValue();
+        return id;
     }
 
-    private List<?> fetchManyToMany(Object entity, Class<?> manyToManyType, AnnotatedElement manyToManyAnnot) {
-        ManyToManyTableId manyToManyTableId = getManyToManyTableAndCols(entity.getClass(), manyToManyType, manyToManyAnnot);
+    private List<?> fetchManyToMany(Object entity, AssociationMetadata association) {
+        Class<?> manyToManyType = association.getTargetType();
+        ManyToManyTableId manyToManyTableId = getManyToManyTableAndCols(association);
         Object entityId = ep.extractId(entity).getValue();
         String childTable = ep.extractTableName(manyToManyType);
         String childIdInTable = ep.extractIdColumnName(manyToManyType);
         String selectAllQuery = String.format(
-                "SELECT %1$s.* FROM %1$s INNER JOIN %2$s ON %1$s.%3$s=%2$s.%4$s WHERE %2$s.%5$s=%6$s",
+                "SELECT %6$s FROM %1$s INNER JOIN %2$s ON %1$s.%3$s=%2$s.%4$s WHERE %2$s.%5$s=?",
                 childTable, manyToManyTableId.tableName, childIdInTable, manyToManyTableId.childCol,
-                manyToManyTableId.entityCol, QueryBuilder.objToString(entityId));
-        if (manyToManyAnnot.getAnnotation(ManyToMany.class).fetch() == FetchType.LAZY) {
-            return new LazyList<>(selectAllQuery + ";", manyToManyType, em, true, false);
+                manyToManyTableId.entityCol, qualifiedSelectColumns(manyToManyType, childTable));
+        if (!isEager(association)) {
+            return new LazyList<>(selectAllQuery + ";", manyToManyType, em, true, false, entityId);
         }
-        String selectIds = String.format("SELECT %s FROM %s WHERE %s=%s;",
+        String selectIds = String.format("SELECT %s FROM %s WHERE %s=?;",
                 manyToManyTableId.childCol,
                 manyToManyTableId.tableName,
-                manyToManyTableId.entityCol,
-                QueryBuilder.objToString(entityId));
-        List<Map<String, Object>> idQueryRes = em.query(selectIds);
+                manyToManyTableId.entityCol);
+        List<Map<String, Object>> idQueryRes = em.preparedQuery(selectIds, entityId);
         List<Object> existingEntites = new ArrayList<>();
-        StringJoiner idsNotToFetch = new StringJoiner(" ");
+        StringBuilder idsNotToFetch = new StringBuilder();
+        List<Object> params = new ArrayList<>();
+        params.add(entityId);
         for (Map<String, Object> childIdMap : idQueryRes) {
             Object childId = childIdMap.get(manyToManyTableId.childCol);
             Object child = em.getFromCache(manyToManyType, childId);
             if (child != null) {
                 existingEntites.add(child);
-                idsNotToFetch.add("AND");
-                idsNotToFetch.add(manyToManyTableId.childCol).add("<>").add(QueryBuilder.objToString(childId));
+                idsNotToFetch.append(" AND ").append(manyToManyTableId.childCol).append("<>?");
+                params.add(childId);
             }
         }
         if (existingEntites.size() < idQueryRes.size()) {
-            List<?> res = em.query(selectAllQuery + idsNotToFetch.toString() + ";", manyToManyType);
+            List<?> res = em.preparedQuery(manyToManyType,
+                    selectAllQuery + idsNotToFetch.toString() + ";", params.toArray());
             existingEntites.addAll(res);
         }
         return existingEntites;
     }
 
-    private <T> Object fetchParent(T entity, AnnotatedElement ae, Class<?> oneType, Map<String, Object> entityMap)
+    private Object fetchParent(Object entity, AssociationMetadata association, Map<String, Object> entityMap)
             throws EntityIdException, EntityException, AnnotationException, EntityLoaderException, QueryException {
-        String oneTableName = ep.extractTableName(oneType);
-        String foreignKeyName = extractForeignKeyColumnName(ae, oneType, entity.getClass());
+        Class<?> oneType = association.getTargetType();
+        String foreignKeyName = getForeignKeyColumnName(association);
         Object idValue = entityMap.get(foreignKeyName);
         if (idValue == null)
             return null;
 
-        if (ae.getAnnotation(ManyToOne.class) != null
-                && ae.getAnnotation(ManyToOne.class).fetch() == FetchType.EAGER
-                || ae.getAnnotation(OneToOne.class) != null
-                && ae.getAnnotation(OneToOne.class).fetch() == FetchType.EAGER) {
+        if (isEager(association)) {
             return em.find(oneType, idValue);
         } else {
-            String idColumn = ep.extractIdColumnName(oneType);
-            String query = QueryBuilder.buildFindByIdQuery(oneTableName, idColumn, idValue);
-            EntityProxy llp = new EntityProxy<>(oneType, em, query);
-            Enhancer enhancer = new Enhancer();
-            enhancer.setSuperclass(oneType);
-            enhancer.setCallback(llp);
-            return enhancer.create();
+            String query = findByIdQuery(oneType);
+            return EntityProxy.create(oneType, em, query, idValue);
         }
     }
 
-    private <T> String composeFetchChildrenQuery(T entity, AnnotatedElement ae, Class<?> childrenType)
+    private String composeFetchChildrenQuery(AssociationMetadata association)
             throws EntityIdException, EntityException {
-        String queryTemplate = "SELECT * FROM %1$s WHERE %1$s.%2$s=%3$s";
+        String queryTemplate = "SELECT %3$s FROM %1$s WHERE %1$s.%2$s=?";
 
-        String childTableName = ep.extractTableName(childrenType);
-        String parentForeignKeyIdCol = extractForeignKeyColumnName(ae, childrenType, entity.getClass());
-        AbstractMap.SimpleEntry<String, Object> parentId = ep.extractId(entity);
+        String childTableName = ep.extractTableName(association.getTargetType());
+        String parentForeignKeyIdCol = getForeignKeyColumnName(association);
 
-        return String.format(queryTemplate,
-                childTableName, parentForeignKeyIdCol, parentId.getValue());
+        return String.format(queryTemplate, childTableName, parentForeignKeyIdCol,
+                selectColumns(association.getTargetType(), parentForeignKeyIdCol));
     }
 
-    private List<?> fetchOneToMany(Object entity, AnnotatedElement childAnnot, Class<?> childrenType)
+    private List<?> fetchOneToMany(Object entity, AssociationMetadata association)
             throws AnnotationException, EntityLoaderException, EntityIdException, EntityException, QueryException {
-        String query = composeFetchChildrenQuery(entity, childAnnot, childrenType);
-        if (childAnnot.getAnnotation(OneToMany.class).fetch() == FetchType.EAGER) {
-            return em.query(query, childrenType);
+        String query = composeFetchChildrenQuery(association);
+        Object parentId = ep.extractId(entity).getValue();
+        if (isEager(association)) {
+            return em.preparedQuery(association.getTargetType(), query, parentId);
         }
-        return new LazyList<>(query, childrenType, em, true, false);
+        return new LazyList<>(query, association.getTargetType(), em, true, false, parentId);
     }
 
-    private Object fetchOneToOne(Object entity, AnnotatedElement childAnnot, Class<?> childrenType)
+    private Object fetchOneToOne(Object entity, AssociationMetadata association)
             throws AnnotationException, EntityLoaderException, EntityIdException, EntityException, QueryException {
-        String query = composeFetchChildrenQuery(entity, childAnnot, childrenType);
-        if (childAnnot.getAnnotation(OneToOne.class).fetch() == FetchType.EAGER) {
-            List<?> res = em.query(query, childrenType);
+        Class<?> childrenType = association.getTargetType();
+        String query = composeFetchChildrenQuery(association);
+        Object parentId = ep.extractId(entity).getValue();
+        if (isEager(association)) {
+            List<?> res = em.preparedQuery(childrenType, query, parentId);
             if (res.size() == 0)
                 return null;
             return res.get(0);
         }
 
-        EntityProxy llp = new EntityProxy<>(childrenType, em, query);
-        Enhancer enhancer = new Enhancer();
-        enhancer.setSuperclass(childrenType);
-        enhancer.setCallback(llp);
-        return enhancer.create();
+        return EntityProxy.create(childrenType, em, query, parentId);
     }
 
-    private boolean isChildAssociation(AnnotatedElement ae) {
-        return ae != null
-                && (ae.getAnnotation(OneToMany.class) != null
-                || ae.getAnnotation(ManyToMany.class) != null
-                || (ae.getAnnotation(OneToOne.class) != null
-                && !ae.getAnnotation(OneToOne.class).mappedBy().equals("")));
-    }
-
-    private boolean isAssociation(AnnotatedElement ae) {
-        return ae != null
-                && (ae.getAnnotation(OneToMany.class) != null
-                || ae.getAnnotation(ManyToOne.class) != null
-                || ae.getAnnotation(ManyToMany.class) != null
-                || ae.getAnnotation(OneToOne.class) != null);
-
+    void removeOldAssociationLinks(Object entity) throws EntityIdException {
+        removeOldAssociationLinks(entity, EntityMetadata.of(entity.getClass()).getAssociations());
     }
 
-    void removeOldAssociationLinks(Object entity) throws EntityIdException {
-        try {
-            if (ep.isIddAnnotationOnField(entity.getClass())) {
-                List<Field> associations = Stream.of(entity.getClass().getDeclaredFields())
-                        .filter(this::isAssociation)
-                        .collect(Collectors.toList());
-                for (Field field : associations) {
-                    field.setAccessible(true);
-                    if (field.getAnnotation(OneToMany.class) != null) {
-                        ParameterizedType collectionType = (ParameterizedType) field.getGenericType();
-                        Class<?> childType = (Class<?>) collectionType.getActualTypeArguments()[0];
-                        Object children = field.get(entity);
-                        removeLinksForChildren(entity, field, childType, children);
-                    }
-                    if (field.getAnnotation(OneToOne.class) != null &&
-                            !field.getAnnotation(OneToOne.class).mappedBy().isEmpty()) {
-                        Object child = field.get(entity);
-                        removeLinksForChildren(entity, field, field.getType(),
-                                child == null ? null : Collections.singletonList(child));
-                    }
-                    if (field.getAnnotation(ManyToMany.class) != null) {
-                        ParameterizedType collectionType = (ParameterizedType) field.getGenericType();
-                        Class<?> childrenType = (Class<?>) collectionType.getActualTypeArguments()[0];
-                        Object children = field.get(entity);
-                        removeOldAssociationTableEntries(entity, children, childrenType, field);
-                    }
-                }
-                return;
+    void removeOldAssociationLinks(Object entity, Collection<AssociationMetadata> associations)
+            throws EntityIdException {
+        for (AssociationMetadata association : associations) {
+            if (association.isOneToMany()) {
+                removeLinksForChildren(entity, association, association.get(entity));
             }
-            List<Method> associations = Stream.
-                    of(Introspector.getBeanInfo(entity.getClass(), Object.class).getPropertyDescriptors())
-                    .map(PropertyDescriptor::getReadMethod)
-                    .filter(this::isAssociation)
-                    .collect(Collectors.toList());
-            for (Method method : associations) {
-                if (method.getAnnotation(OneToMany.class) != null) {
-                    ParameterizedType collectionType = (ParameterizedType) method.getGenericReturnType();
-                    Class<?> childType = (Class<?>) collectionType.getActualTypeArguments()[0];
-                    Object children = method.invoke(entity);
-                    removeLinksForChildren(entity, method, childType, children);
-                }
-                if (method.getAnnotation(OneToOne.class) != null &&
-                        !method.getAnnotation(OneToOne.class).mappedBy().isEmpty()) {
-                    Object child = method.invoke(entity);
-                    removeLinksForChildren(entity, method, method.getReturnType(),
-                            child == null ? null : Collections.singletonList(child));
-                }
-                if (method.getAnnotation(ManyToMany.class) != null) {
-                    ParameterizedType collectionType = (ParameterizedType) method.getGenericReturnType();
-                    Class<?> childrenType = (Class<?>) collectionType.getActualTypeArguments()[0];
-                    removeOldAssociationTableEntries(entity, method.invoke(entity), childrenType, method);
-                }
+            if (association.isOneToOne() && !association.getMappedBy().isEmpty()) {
+                Object child = association.get(entity);
+                removeLinksForChildren(entity, association,
+                        child == null ? null : Collections.singletonList(child));
+            }
+            if (association.isManyToMany()) {
+                Object children = association.get(entity);
+                // with cascading, saveAssociations already synchronized the links of the collection
+                Set<CascadeType> cascades = association.getCascades();
+                if (children != null && (cascades.contains(CascadeType.ALL) || cascades.contains(CascadeType.PERSIST)))
+                    continue;
+                removeOldAssociationTableEntries(entity, (Collection<?>) children, association);
             }
-        } catch (IllegalAccessException | IntrospectionException | InvocationTargetException e) {
-            e.printStackTrace();
         }
     }
 
     private void removeOldAssociationTableEntries(
-            Object entity, Object relatedEntites, Class<?> relatedEntityClass, AnnotatedElement relatedEntityAnnot) {
-        ManyToManyTableId manyToManyTableId = getManyToManyTableAndCols(
-                entity.getClass(), relatedEntityClass, relatedEntityAnnot);
-        String sql = String.format("DELETE FROM %1$S WHERE %2$s=%3$s ",
-                manyToManyTableId.tableName,
-                manyToManyTableId.entityCol,
-                QueryBuilder.objToString(ep.extractId(entity).getValue()));
-        if (relatedEntites != null) {
-            StringJoiner where = new StringJoiner(" ");
-            for (Object child : (Collection) relatedEntites) {
-                where.add("AND");
-                Object id = ep.extractId(child).getValue();
-                where.add(manyToManyTableId.childCol).add("<>").add(QueryBuilder.objToString(id));
-            }
-            sql += where.toString();
+            Object entity, Collection<?> relatedEntities, AssociationMetadata association) {
+        if (relatedEntities != null) {
+            removeStaleLinks(entity, relatedEntities, association, readLinks(entity, association));
+            return;
         }
-        sql += ";";
-        em.executeUpdate(sql);
+        ManyToManyTableId joinTable = getManyToManyTableAndCols(association);
+        em.executeUpdate(QueryBuilder.buildDeleteQuery(joinTable.tableName, joinTable.entityCol),
+                ep.extractId(entity).getValue());
+        em.evict(association.getTargetType());
+    }
+
+    /**
+     * Makes the join table hold exactly the links to the given children: existing links are read once,
+     * then the missing ones are inserted and the stale ones deleted, each in a single batch.
+     */
+    private void synchronizeLinks(Object entity, Collection<?> children, AssociationMetadata association) {
+        ManyToManyTableId joinTable = getManyToManyTableAndCols(association);
+        Object entityId = ep.extractId(entity).getValue();
+        Set<Object> existing = readLinks(entity, association);
+
+        List<Object[]> inserts = new ArrayList<>();
+        Set<Object> linked = new HashSet<>();
+        for (Object child : children) {
+            Object childId = ep.extractId(child).getValue();
+            if (linked.add(keyOf(childId)) && !existing.contains(keyOf(childId)))
+                inserts.add(new Object[]{entityId, childId});
+        }
+        LinkedHashSet<String> columns = new LinkedHashSet<>();
+        columns.add(joinTable.entityCol);
+        columns.add(joinTable.childCol);
+        em.executeBatchUpdate(QueryBuilder.buildInsertQuery(joinTable.tableName, columns), inserts);
+
+        removeStaleLinks(entity, children, association, existing);
+    }
+
+    private void removeStaleLinks(Object entity, Collection<?> children, AssociationMetadata association,
+                                  Set<Object> existing) {
+        Set<Object> stale = new LinkedHashSet<>(existing);
+        for (Object child : children) {
+            stale.remove(keyOf(ep.extractId(child).getValue()));
+        }
+        if (stale.isEmpty())
+            return;
+
+        ManyToManyTableId joinTable = getManyToManyTableAndCols(association);
+        Object entityId = ep.extractId(entity).getValue();
+        List<Object[]> deletes = new ArrayList<>();
+        for (Object childId : stale) {
+            deletes.add(new Object[]{entityId, childId});
+        }
+        em.executeBatchUpdate(String.format("DELETE FROM %s WHERE %s=? AND %s=?;",
+                joinTable.tableName, joinTable.entityCol, joinTable.childCol), deletes);
+        em.evict(association.getTargetType());
+    }
+
+    private Set<Object> readLinks(Object entity, AssociationMetadata association) {
+        ManyToManyTableId joinTable = getManyToManyTableAndCols(association);
+        List<Map<String, Object>> links = em.preparedQuery(String.format("SELECT %s FROM %s WHERE %s=?;",
+                joinTable.childCol, joinTable.tableName, joinTable.entityCol), ep.extractId(entity).getValue());
+        Set<Object> ids = new LinkedHashSet<>();
+        for (Map<String, Object> link : links) {
+            ids.add(keyOf(link.get(joinTable.childCol)));
+        }
+        return ids;
     }
 
-    private void removeLinksForChildren(Object entity, AnnotatedElement ae, Class<?> childType, Object children)
+    private void removeLinksForChildren(Object entity, AssociationMetadata association, Object children)
             throws EntityIdException, EntityException, QueryException {
         String queryTemplate = "UPDATE %1$s SET %2$s=null WHERE %2$s=%3$s ";
-        if (ae.getAnnotation(OneToMany.class) != null
-                && ae.getAnnotation(OneToMany.class).orphanRemoval()
-                || ae.getAnnotation(OneToOne.class) != null
-                && ae.getAnnotation(OneToOne.class).orphanRemoval()) {
+        if (association.isOrphanRemoval()) {
             queryTemplate = "DELETE FROM %1$S WHERE %2$s=%3$s ";
         }
-        String sql = String.format(queryTemplate, ep.extractTableName(childType),
-                extractForeignKeyColumnName(ae, childType, entity.getClass()),
+        String sql = String.format(queryTemplate, ep.extractTableName(association.getTargetType()),
+                getForeignKeyColumnName(association),
                 QueryBuilder.objToString(ep.extractId(entity).getValue()));
         if (children != null) {
             StringJoiner where = new StringJoiner(" ");
@@ -663,6 +802,7 @@ class AssociationHandler {
         }
         sql += ";";
         em.executeUpdate(sql);
+        em.evict(association.getTargetType());
     }
 
     private static class ManyToManyTableId {
@@ -0,0 +1,161 @@
+package com.mmaricic.worm;
+
+import com.mmaricic.worm.exceptions.DatabaseConfigurationException;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs entity manager operations on an executor and returns their results as futures. Every operation gets
+ * its own entity manager, so operations don't share connections, caches of a call or transactions;
+ * work which needs them together should go through {@link #inTransactionAsync(Function)}.
+ */
+public class AsyncEntityManager {
+    private final Supplier<EntityManager> entityManagers;
+    private final Executor executor;
+
+    AsyncEntityManager(Supplier<EntityManager> entityManagers, Executor executor) {
+        this.entityManagers = entityManagers;
+        this.executor = executor;
+    }
+
+    public <T> CompletableFuture<T> findAsync(Class<T> entityClass, Object id) {
+        return supplyAsync(em -> em.find(entityClass, id));
+    }
+
+    public CompletableFuture<Boolean> saveAsync(Object entity) {
+        return supplyAsync(em -> em.save(entity));
+    }
+
+    public CompletableFuture<Boolean> updateAsync(Object entity) {
+        return supplyAsync(em -> em.update(entity));
+    }
+
+    public CompletableFuture<Boolean> deleteAsync(Object entity) {
+        return supplyAsync(em -> em.delete(entity));
+    }
+
+    public CompletableFuture<Boolean> saveAllAsync(Collection<?> entities) {
+        return supplyAsync(em -> em.saveAll(entities));
+    }
+
+    public CompletableFuture<Boolean> updateAllAsync(Collection<?> entities) {
+        return supplyAsync(em -> em.updateAll(entities));
+    }
+
+    public CompletableFuture<Boolean> deleteAllAsync(Collection<?> entities) {
+        return supplyAsync(em -> em.deleteAll(entities));
+    }
+
+    public CompletableFuture<List<Map<String, Object>>> queryAsync(String sql) {
+        return supplyAsync(em -> em.query(sql));
+    }
+
+    public <T> CompletableFuture<List<T>> queryAsync(String sql, Class<T> entityClass) {
+        return supplyAsync(em -> em.query(sql, entityClass));
+    }
+
+    public CompletableFuture<List<Map<String, Object>>> preparedQueryAsync(String sql, Object... args) {
+        return supplyAsync(em -> em.preparedQuery(sql, args));
+    }
+
+    public <T> CompletableFuture<List<T>> preparedQueryAsync(Class<T> entityClass, String sql, Object... args) {
+        return supplyAsync(em -> em.preparedQuery(entityClass, sql, args));
+    }
+
+    /**
+     * Runs the given work with an entity manager of its own, e.g. to load a LazyList off the calling thread.
+     */
+    public <T> CompletableFuture<T> supplyAsync(Function<EntityManager, T> work) {
+        return CompletableFuture.supplyAsync(() -> work.apply(entityManagers.get()), executor);
+    }
+
+    public <T> CompletableFuture<T> inTransactionAsync(Function<EntityManager, T> work) {
+        return supplyAsync(em -> em.inTransaction(work));
+    }
+
+    /**
+     * Executor running at most maxConcurrency operations at once, so they never wait on each other for
+     * pooled connections. On JDK 21+ every operation gets a virtual thread, otherwise they share a fixed
+     * pool of daemon threads.
+     */
+    static ExecutorService newExecutor(int maxConcurrency) {
+        if (maxConcurrency <= 0)
+            throw new DatabaseConfigurationException("Async executor concurrency must be positive.");
+        ExecutorService virtualThreads = newVirtualThreadExecutor();
+        if (virtualThreads != null)
+            return new BoundedExecutor(virtualThreads, maxConcurrency);
+
+        AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(maxConcurrency, task -> {
+            Thread thread = new Thread(task, "worm-async-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Virtual threads are cheap to block, so tasks wait for a permit on their own thread.
+     */
+    private static class BoundedExecutor extends AbstractExecutorService {
+        private final ExecutorService delegate;
+        private final Semaphore permits;
+
+        BoundedExecutor(ExecutorService delegate, int maxConcurrency) {
+            this.delegate = delegate;
+            this.permits = new Semaphore(maxConcurrency);
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            delegate.execute(() -> {
+                permits.acquireUninterruptibly();
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        }
+
+        @Override
+        public void shutdown() {
+            delegate.shutdown();
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return delegate.shutdownNow();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return delegate.isShutdown();
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return delegate.isTerminated();
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+}
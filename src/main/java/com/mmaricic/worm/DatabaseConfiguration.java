@@ -0,0 +1,144 @@
+package com.mmaricic.worm;
+
+import com.mmaricic.worm.exceptions.DatabaseConfigurationException;
+import org.apache.commons.dbcp2.BasicDataSource;
+
+import java.time.Duration;
+
+/**
+ * Connection pool settings used by {@link EntityManagerFactory#configureDatabase(DatabaseConfiguration)}.
+ * Settings which are not set keep the DBCP defaults.
+ */
+public class DatabaseConfiguration {
+    private final String driver;
+    private final String url;
+    private final String username;
+    private final String password;
+    private int statementCacheSize = EntityManagerFactory.DEFAULT_STATEMENT_CACHE_SIZE;
+    private Integer maxTotal;
+    private Integer maxIdle;
+    private Integer minIdle;
+    private Integer initialSize;
+    private Duration maxWait;
+    private String validationQuery;
+    private Duration validationQueryTimeout;
+    private Boolean testOnBorrow;
+    private Boolean testWhileIdle;
+    private Duration timeBetweenEvictionRuns;
+    private Duration minEvictableIdleTime;
+
+    public DatabaseConfiguration(String driver, String url, String username, String password) {
+        this.driver = driver;
+        this.url = url;
+        this.username = username;
+        this.password = password;
+    }
+
+    public DatabaseConfiguration maxTotal(int maxTotal) {
+        if (maxTotal == 0 || maxTotal < -1)
+            throw new DatabaseConfigurationException("Max total connections must be positive or -1 for no limit.");
+        this.maxTotal = maxTotal;
+        return this;
+    }
+
+    public DatabaseConfiguration maxIdle(int maxIdle) {
+        if (maxIdle < -1)
+            throw new DatabaseConfigurationException("Max idle connections can't be negative, except -1 for no limit.");
+        this.maxIdle = maxIdle;
+        return this;
+    }
+
+    public DatabaseConfiguration minIdle(int minIdle) {
+        this.minIdle = requireNonNegative(minIdle, "Min idle connections");
+        return this;
+    }
+
+    public DatabaseConfiguration initialSize(int initialSize) {
+        this.initialSize = requireNonNegative(initialSize, "Initial pool size");
+        return this;
+    }
+
+    /**
+     * How long a caller waits for a free connection before getting an error, negative value waits indefinitely.
+     */
+    public DatabaseConfiguration maxWait(Duration maxWait) {
+        this.maxWait = maxWait;
+        return this;
+    }
+
+    public DatabaseConfiguration statementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = requireNonNegative(statementCacheSize, "Statement cache size");
+        return this;
+    }
+
+    public DatabaseConfiguration validationQuery(String validationQuery) {
+        this.validationQuery = validationQuery;
+        return this;
+    }
+
+    public DatabaseConfiguration validationQueryTimeout(Duration validationQueryTimeout) {
+        this.validationQueryTimeout = validationQueryTimeout;
+        return this;
+    }
+
+    public DatabaseConfiguration testOnBorrow(boolean testOnBorrow) {
+        this.testOnBorrow = testOnBorrow;
+        return this;
+    }
+
+    public DatabaseConfiguration testWhileIdle(boolean testWhileIdle) {
+        this.testWhileIdle = testWhileIdle;
+        return this;
+    }
+
+    /**
+     * Idle connections are checked every timeBetweenEvictionRuns and closed once they were idle
+     * for longer than minEvictableIdleTime.
+     */
+    public DatabaseConfiguration eviction(Duration timeBetweenEvictionRuns, Duration minEvictableIdleTime) {
+        this.timeBetweenEvictionRuns = timeBetweenEvictionRuns;
+        this.minEvictableIdleTime = minEvictableIdleTime;
+        return this;
+    }
+
+    BasicDataSource createDataSource() {
+        BasicDataSource dataSource = new BasicDataSource();
+        dataSource.setDriverClassName(driver);
+        dataSource.setUrl(url);
+        dataSource.setUsername(username);
+        dataSource.setPassword(password);
+        if (statementCacheSize > 0) {
+            dataSource.setPoolPreparedStatements(true);
+            dataSource.setMaxOpenPreparedStatements(statementCacheSize);
+        }
+        if (maxTotal != null)
+            dataSource.setMaxTotal(maxTotal);
+        if (maxIdle != null)
+            dataSource.setMaxIdle(maxIdle);
+        if (minIdle != null)
+            dataSource.setMinIdle(minIdle);
+        if (initialSize != null)
+            dataSource.setInitialSize(initialSize);
+        if (maxWait != null)
+            dataSource.setMaxWaitMillis(maxWait.toMillis());
+        if (validationQuery != null)
+            dataSource.setValidationQuery(validationQuery);
+        if (validationQueryTimeout != null)
+            dataSource.setValidationQueryTimeout((int) validationQueryTimeout.getSeconds());
+        if (testOnBorrow != null)
+            dataSource.setTestOnBorrow(testOnBorrow);
+        if (testWhileIdle != null)
+            dataSource.setTestWhileIdle(testWhileIdle);
+        if (timeBetweenEvictionRuns != null)
+            dataSource.setTimeBetweenEvictionRunsMillis(timeBetweenEvictionRuns.toMillis());
+        if (minEvictableIdleTime != null)
+            dataSource.setMinEvictableIdleTimeMillis(minEvictableIdleTime.toMillis());
+        return dataSource;
+    }
+
+    private static int requireNonNegative(int value, String name) {
+        if (value < 0)
+            throw new DatabaseConfigurationException(String.format("%s can't be negative.", name));
+        return value;
+    }
+}
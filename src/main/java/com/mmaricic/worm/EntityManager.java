@@ -1,24 +1,59 @@
 package com.mmaricic.worm;
 
+import com.mmaricic.worm.EntityMetadata.AssociationMetadata;
+import com.mmaricic.worm.EntityMetadata.ColumnMetadata;
 import com.mmaricic.worm.exceptions.*;
 import com.mmaricic.worm.exceptions.EntityIdException.EntityIdExceptionType;
-import org.apache.commons.dbcp2.BasicDataSource;
 
-import java.lang.reflect.Field;
+import javax.sql.DataSource;
 import java.sql.*;
 import java.util.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
+/**
+ * Keeps the connection, transaction and loaded entities of its caller, so an instance must not be shared
+ * between threads. Use one per unit of work, {@link EntityManagerFactory#getCurrentEntityManager()} for one
+ * per thread, or {@link AsyncEntityManager} for concurrent operations.
+ */
 public class EntityManager {
-    private final BasicDataSource dbSource;
-    private final EntityParser entityParser;
+    public static final int DEFAULT_STREAM_FETCH_SIZE = 1000;
+    public static final int DEFAULT_BATCH_FETCH_SIZE = 100;
+    public static final int DEFAULT_IDENTITY_MAP_SIZE = 10000;
+
+    private final DataSource dbSource;
+    private static final EntityParser entityParser = new EntityParser();
     private final AssociationHandler associationHandler;
+    private final EntitySnapshots snapshots;
     private Connection activeConn;
+    private boolean transactionActive = false;
+    private int streamFetchSize = DEFAULT_STREAM_FETCH_SIZE;
+    private int batchFetchSize = DEFAULT_BATCH_FETCH_SIZE;
+    private int identityMapSize = DEFAULT_IDENTITY_MAP_SIZE;
+    private IdentityMap persistenceContext = null;
     private Map<Class<?>, Map<Object, Object>> cache = null;
+    private final SecondLevelCache sharedCache;
+    private final Map<Class<?>, Set<Object>> uncommittedWrites = new HashMap<>();
+    private final QueryCache queryCache;
+    private final Set<String> uncommittedTables = new HashSet<>();
+    private final Set<Object> uncommittedSnapshots = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<Object> uncommittedInserts = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Map<Object, Object> uncommittedDeletes = new IdentityHashMap<>();
+    private long readStamp = 0;
+    private boolean readStampPinned = false;
+
+    EntityManager(DataSource dbSource) {
+        this(dbSource, null, null);
+    }
 
-    EntityManager(BasicDataSource dbSource) {
+    EntityManager(DataSource dbSource, SecondLevelCache sharedCache, QueryCache queryCache) {
         this.dbSource = dbSource;
-        entityParser = new EntityParser();
-        associationHandler = new AssociationHandler(this);
+        this.sharedCache = sharedCache;
+        this.queryCache = queryCache;
+        associationHandler = new AssociationHandler(this, entityParser);
+        snapshots = new EntitySnapshots(entityParser, associationHandler);
     }
 
     public boolean save(Object entity)
@@ -52,19 +87,20 @@ public class EntityManager {
             stm = activeConn.prepareStatement(sql);
             stm.setObject(1, id.getValue());
             int res = stm.executeUpdate();
-            Field idField = entityParser.getIdField(entity.getClass());
-            idField.setAccessible(true);
-            idField.set(entity, null);
+            tableWritten(tableName);
+            forget(entity);
+            invalidate(entity);
+            snapshots.remove(entity);
+            uncommittedDeletes.put(entity, id.getValue());
+            entityParser.setId(entity, null);
             return res != 0;
 
         } catch (SQLException e) {
-            throw new QueryException(
+            throw rolledBack(createdConn, new QueryException(
                     String.format("An error occurred while trying to delete an entity of class %s. Error: %s",
-                            entity.getClass().getSimpleName(), e.getMessage()));
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            throw new EntityException(String.format(
-                    "An error occurred while trying to reset ID for object type class %s to null. Error: %s",
-                    entity.getClass().getSimpleName(), e.getMessage()));
+                            entity.getClass().getSimpleName(), errorMessage(e)), e));
+        } catch (RuntimeException e) {
+            throw rolledBack(createdConn, e);
         } finally {
             commitAndClose(createdConn, stm);
         }
@@ -76,19 +112,8 @@ public class EntityManager {
             return false;
 
         boolean autogeneratedId = entityParser.isIdAutoGenerated(entity.getClass());
-        AbstractMap.SimpleEntry<String, Object> entityId = entityParser.extractId(entity);
-        if (autogeneratedId && entityId.getValue() != null)
-            throw new EntityIdException(entity.getClass().getSimpleName(), EntityIdExceptionType.AUTO_GENERATED_ID);
-        if (!autogeneratedId && entityId.getValue() == null)
-            throw new EntityIdException(entity.getClass().getSimpleName(), EntityIdExceptionType.MISSING_ID_VALUE);
-
-        if (parentsIds == null)
-            parentsIds = new LinkedHashMap<>();
-        associationHandler.getAssociatedParentsIds(entity).forEach(parentsIds::putIfAbsent);
-
+        Map<String, Object> entityElements = parseForInsert(entity, parentsIds);
         String tableName = entityParser.extractTableName(entity.getClass());
-        Map<String, Object> entityElements = entityParser.parse(entity, !autogeneratedId);
-        entityElements.putAll(parentsIds);
         String sql = QueryBuilder.buildInsertQuery(tableName, entityElements.keySet());
 
         PreparedStatement stm = null;
@@ -102,27 +127,34 @@ public class EntityManager {
             }
 
             int res = stm.executeUpdate();
-            if (!autogeneratedId)
+            tableWritten(tableName);
+            if (!autogeneratedId) {
+                if (res != 0) {
+                    manage(entity);
+                    takeWrittenSnapshot(entity, entityElements);
+                }
                 return res != 0;
+            }
 
             ResultSet generatedKeys = stm.getGeneratedKeys();
             if (generatedKeys.next()) {
-                Field idField = entityParser.getIdField(entity.getClass());
-                idField.setAccessible(true);
-                idField.set(entity, extractIdFromResultSet(generatedKeys, idField.getType()));
+                entityParser.setId(entity,
+                        extractIdFromResultSet(generatedKeys, entityParser.getIdType(entity.getClass())));
+                uncommittedInserts.add(entity);
+                manage(entity);
 
-                return associationHandler.saveAssociations(entity);
+                boolean saved = associationHandler.saveAssociations(entity);
+                takeWrittenSnapshot(entity, entityElements);
+                return saved;
             } else
                 return false;
 
         } catch (SQLException e) {
-            throw new QueryException(
+            throw rolledBack(createdConn, new QueryException(
                     String.format("An error occurred while trying to save an entity of class %s. Error: %s",
-                            entity.getClass().getSimpleName(), e.getMessage()));
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            throw new EntityException(String.format(
-                    "An error occurred while trying to set auto-generated ID for object type class %s. Error: %s",
-                    entity.getClass().getSimpleName(), e.getMessage()));
+                            entity.getClass().getSimpleName(), errorMessage(e)), e));
+        } catch (RuntimeException e) {
+            throw rolledBack(createdConn, e);
         } finally {
             commitAndClose(createdConn, stm);
         }
@@ -132,46 +164,299 @@ public class EntityManager {
             throws EntityIdException, EntityException, AnnotationException, EntityLoaderException, QueryException {
         if (entity == null)
             return false;
-
-        if (parentIds == null)
-            parentIds = new LinkedHashMap<>();
-        associationHandler.getAssociatedParentsIds(entity).forEach(parentIds::putIfAbsent);
+        verifyWritable(entity);
 
         String tableName = entityParser.extractTableName(entity.getClass());
         AbstractMap.SimpleEntry<String, Object> id = entityParser.extractId(entity);
-        Map<String, Object> entityElements = entityParser.parse(entity, false);
-        entityElements.putAll(parentIds);
+        Map<String, Object> entityElements = parseForUpdate(entity, parentIds);
+        Map<String, Object> changedColumns = changedColumns(entity, entityElements);
+        List<AssociationMetadata> changedAssociations = snapshots.changedAssociations(entity);
+        if (changedColumns.isEmpty() && changedAssociations.isEmpty())
+            return true;
 
-        String sql = QueryBuilder.buildUpdateQuery(tableName, entityElements.keySet(), id.getKey());
         PreparedStatement stm = null;
         boolean createdConn = false;
         try {
             createdConn = openConnection();
-            stm = activeConn.prepareStatement(sql);
-            int i = 1;
-            for (Object val : entityElements.values()) {
-                stm.setObject(i++, val);
-            }
-            stm.setObject(i, id.getValue());
+            if (!changedColumns.isEmpty()) {
+                String sql = QueryBuilder.buildUpdateQuery(tableName, changedColumns.keySet(), id.getKey());
+                stm = activeConn.prepareStatement(sql);
+                int i = 1;
+                for (Object val : changedColumns.values()) {
+                    stm.setObject(i++, val);
+                }
+                stm.setObject(i, id.getValue());
 
-            int res = stm.executeUpdate();
+                int res = stm.executeUpdate();
+                tableWritten(tableName);
 
-            if (res == 0)
-                return false;
-            if (!associationHandler.saveAssociations(entity))
+                if (res == 0)
+                    return false;
+            }
+            manage(entity);
+            if (!associationHandler.saveAssociations(entity, changedAssociations))
                 return false;
-            associationHandler.removeOldAssociationLinks(entity);
+            associationHandler.removeOldAssociationLinks(entity, changedAssociations);
+            takeWrittenSnapshot(entity, entityElements);
             return true;
 
         } catch (SQLException e) {
-            throw new QueryException(
+            throw rolledBack(createdConn, new QueryException(
                     String.format("An error occurred while trying to update an entity of class %s. Error: %s",
-                            entity.getClass().getSimpleName(), e.getMessage()));
+                            entity.getClass().getSimpleName(), errorMessage(e)), e));
+        } catch (RuntimeException e) {
+            throw rolledBack(createdConn, e);
         } finally {
             commitAndClose(createdConn, stm);
         }
     }
 
+    public boolean saveAll(Collection<?> entities)
+            throws EntityIdException, EntityException, AnnotationException, EntityLoaderException, QueryException {
+        Map<String, List<BatchRow>> batches = new LinkedHashMap<>();
+        for (Object entity : entities) {
+            if (entity == null)
+                continue;
+            entityParser.verifyItsEntityClass(entity.getClass());
+            Map<String, Object> entityElements = parseForInsert(entity, null);
+            String tableName = entityParser.extractTableName(entity.getClass());
+            String sql = QueryBuilder.buildInsertQuery(tableName, entityElements.keySet());
+            batches.computeIfAbsent(sql, k -> new ArrayList<>())
+                    .add(new BatchRow(entity, new ArrayList<>(entityElements.values()), entityElements));
+        }
+
+        boolean createdConn = false;
+        try {
+            createdConn = openConnection();
+            boolean saved = true;
+            for (Map.Entry<String, List<BatchRow>> batch : batches.entrySet()) {
+                List<BatchRow> rows = batch.getValue();
+                Class<?> entityClass = rows.get(0).entity.getClass();
+                boolean autogeneratedId = entityParser.isIdAutoGenerated(entityClass);
+                try (PreparedStatement stm = autogeneratedId
+                        ? activeConn.prepareStatement(batch.getKey(), Statement.RETURN_GENERATED_KEYS)
+                        : activeConn.prepareStatement(batch.getKey())) {
+                    int[] res = executeBatch(stm, rows);
+                    tableWritten(entityParser.extractTableName(entityClass));
+                    if (!autogeneratedId) {
+                        saved &= allRowsAffected(res);
+                        for (BatchRow row : rows) {
+                            manage(row.entity);
+                            takeWrittenSnapshot(row.entity, row.columns);
+                        }
+                        continue;
+                    }
+
+                    ResultSet generatedKeys = stm.getGeneratedKeys();
+                    for (BatchRow row : rows) {
+                        if (!generatedKeys.next())
+                            throw new QueryException(String.format(
+                                    "Database driver did not return generated ids for a batch insert of class %s.",
+                                    entityClass.getSimpleName()));
+                        entityParser.setId(row.entity, extractIdFromResultSet(
+                                generatedKeys, entityParser.getIdType(row.entity.getClass())));
+                        uncommittedInserts.add(row.entity);
+                        manage(row.entity);
+                    }
+                    for (BatchRow row : rows) {
+                        saved &= associationHandler.saveAssociations(row.entity);
+                        takeWrittenSnapshot(row.entity, row.columns);
+                    }
+                }
+            }
+            return saved;
+
+        } catch (SQLException e) {
+            throw rolledBack(createdConn, new QueryException(
+                    String.format("An error occurred while trying to save a batch of entities. Error: %s",
+                            errorMessage(e)), e));
+        } catch (RuntimeException e) {
+            throw rolledBack(createdConn, e);
+        } finally {
+            commitAndClose(createdConn, null);
+        }
+    }
+
+    public boolean updateAll(Collection<?> entities)
+            throws EntityIdException, EntityException, AnnotationException, EntityLoaderException, QueryException {
+        Map<String, List<BatchRow>> batches = new LinkedHashMap<>();
+        List<BatchRow> associationsOnly = new ArrayList<>();
+        for (Object entity : entities) {
+            if (entity == null)
+                continue;
+            entityParser.verifyItsEntityClass(entity.getClass());
+            verifyWritable(entity);
+            String tableName = entityParser.extractTableName(entity.getClass());
+            AbstractMap.SimpleEntry<String, Object> id = entityParser.extractId(entity);
+            Map<String, Object> entityElements = parseForUpdate(entity, null);
+            Map<String, Object> changedColumns = changedColumns(entity, entityElements);
+            if (changedColumns.isEmpty()) {
+                associationsOnly.add(new BatchRow(entity, Collections.emptyList(), entityElements));
+                continue;
+            }
+            String sql = QueryBuilder.buildUpdateQuery(tableName, changedColumns.keySet(), id.getKey());
+            List<Object> values = new ArrayList<>(changedColumns.values());
+            values.add(id.getValue());
+            batches.computeIfAbsent(sql, k -> new ArrayList<>()).add(new BatchRow(entity, values, entityElements));
+        }
+
+        boolean createdConn = false;
+        try {
+            createdConn = openConnection();
+            boolean updated = true;
+            List<BatchRow> updatedRows = new ArrayList<>();
+            for (Map.Entry<String, List<BatchRow>> batch : batches.entrySet()) {
+                List<BatchRow> rows = batch.getValue();
+                int[] res;
+                try (PreparedStatement stm = activeConn.prepareStatement(batch.getKey())) {
+                    res = executeBatch(stm, rows);
+                }
+                tableWritten(entityParser.extractTableName(rows.get(0).entity.getClass()));
+                for (int i = 0; i < rows.size(); i++) {
+                    if (res[i] == 0)
+                        updated = false;
+                    else
+                        updatedRows.add(rows.get(i));
+                }
+            }
+            updatedRows.addAll(associationsOnly);
+
+            for (BatchRow row : updatedRows) {
+                Object entity = row.entity;
+                List<AssociationMetadata> changedAssociations = snapshots.changedAssociations(entity);
+                if (row.values.isEmpty() && changedAssociations.isEmpty())
+                    continue;
+                manage(entity);
+                if (!associationHandler.saveAssociations(entity, changedAssociations)) {
+                    updated = false;
+                    continue;
+                }
+                associationHandler.removeOldAssociationLinks(entity, changedAssociations);
+                takeWrittenSnapshot(entity, row.columns);
+            }
+            return updated;
+
+        } catch (SQLException e) {
+            throw rolledBack(createdConn, new QueryException(
+                    String.format("An error occurred while trying to update a batch of entities. Error: %s",
+                            errorMessage(e)), e));
+        } catch (RuntimeException e) {
+            throw rolledBack(createdConn, e);
+        } finally {
+            commitAndClose(createdConn, null);
+        }
+    }
+
+    public boolean deleteAll(Collection<?> entities)
+            throws EntityIdException, EntityException, AnnotationException, QueryException {
+        boolean createdConn = false;
+        try {
+            createdConn = openConnection();
+            Map<String, List<BatchRow>> batches = new LinkedHashMap<>();
+            for (Object entity : entities) {
+                if (entity == null)
+                    continue;
+                entityParser.verifyItsEntityClass(entity.getClass());
+                associationHandler.deleteAssociations(entity);
+
+                String tableName = entityParser.extractTableName(entity.getClass());
+                AbstractMap.SimpleEntry<String, Object> id = entityParser.extractId(entity);
+                String sql = QueryBuilder.buildDeleteQuery(tableName, id.getKey());
+                batches.computeIfAbsent(sql, k -> new ArrayList<>())
+                        .add(new BatchRow(entity, Collections.singletonList(id.getValue()), Collections.emptyMap()));
+            }
+
+            boolean deleted = true;
+            for (Map.Entry<String, List<BatchRow>> batch : batches.entrySet()) {
+                try (PreparedStatement stm = activeConn.prepareStatement(batch.getKey())) {
+                    deleted &= allRowsAffected(executeBatch(stm, batch.getValue()));
+                }
+                tableWritten(entityParser.extractTableName(batch.getValue().get(0).entity.getClass()));
+                for (BatchRow row : batch.getValue()) {
+                    forget(row.entity);
+                    invalidate(row.entity);
+                    snapshots.remove(row.entity);
+                    uncommittedDeletes.put(row.entity, row.values.get(0));
+                    entityParser.setId(row.entity, null);
+                }
+            }
+            return deleted;
+
+        } catch (SQLException e) {
+            throw rolledBack(createdConn, new QueryException(
+                    String.format("An error occurred while trying to delete a batch of entities. Error: %s",
+                            errorMessage(e)), e));
+        } catch (RuntimeException e) {
+            throw rolledBack(createdConn, e);
+        } finally {
+            commitAndClose(createdConn, null);
+        }
+    }
+
+    private Map<String, Object> parseForInsert(Object entity, Map<String, Object> parentsIds)
+            throws EntityIdException, EntityException, AnnotationException, EntityLoaderException {
+        boolean autogeneratedId = entityParser.isIdAutoGenerated(entity.getClass());
+        AbstractMap.SimpleEntry<String, Object> entityId = entityParser.extractId(entity);
+        if (autogeneratedId && entityId.getValue() != null)
+            throw new EntityIdException(entity.getClass().getSimpleName(), EntityIdExceptionType.AUTO_GENERATED_ID);
+        if (!autogeneratedId && entityId.getValue() == null)
+            throw new EntityIdException(entity.getClass().getSimpleName(), EntityIdExceptionType.MISSING_ID_VALUE);
+
+        if (parentsIds == null)
+            parentsIds = new LinkedHashMap<>();
+        associationHandler.getAssociatedParentsIds(entity).forEach(parentsIds::putIfAbsent);
+
+        Map<String, Object> entityElements = entityParser.parse(entity, !autogeneratedId);
+        entityElements.putAll(parentsIds);
+        return entityElements;
+    }
+
+    private void verifyWritable(Object entity) throws EntityException {
+        if (snapshots.isReadOnly(entity))
+            throw new EntityException(String.format(
+                    "Entity of class %s was loaded with selected columns only and can't be updated.",
+                    entity.getClass().getSimpleName()));
+    }
+
+    private Map<String, Object> parseForUpdate(Object entity, Map<String, Object> parentIds)
+            throws EntityIdException, EntityException, AnnotationException, EntityLoaderException {
+        if (parentIds == null)
+            parentIds = new LinkedHashMap<>();
+        associationHandler.getAssociatedParentsIds(entity).forEach(parentIds::putIfAbsent);
+
+        Map<String, Object> entityElements = entityParser.parse(entity, false);
+        entityElements.putAll(parentIds);
+        return entityElements;
+    }
+
+    /**
+     * Columns which differ from the entity's snapshot. Entities without one, like the ones not loaded
+     * by this entity manager, have all their columns written.
+     */
+    private Map<String, Object> changedColumns(Object entity, Map<String, Object> entityElements) {
+        Map<String, Object> changed = snapshots.changedColumns(entity, entityElements);
+        return changed == null ? entityElements : changed;
+    }
+
+    private int[] executeBatch(PreparedStatement stm, List<BatchRow> rows) throws SQLException {
+        for (BatchRow row : rows) {
+            int i = 1;
+            for (Object val : row.values) {
+                stm.setObject(i++, val);
+            }
+            stm.addBatch();
+        }
+        return stm.executeBatch();
+    }
+
+    private boolean allRowsAffected(int[] results) {
+        for (int res : results) {
+            if (res == 0)
+                return false;
+        }
+        return true;
+    }
+
     private Object extractIdFromResultSet(ResultSet generatedKeys, Class<?> type)
             throws SQLException, AnnotationException {
         if (type.isAssignableFrom(Integer.class))
@@ -185,22 +470,22 @@ public class EntityManager {
             throws EntityIdException, EntityException, AnnotationException, EntityLoaderException, QueryException {
         entityParser.verifyItsEntityClass(entityClass);
         T entity = (T) getFromCache(entityClass, id);
+        if (entity == null)
+            entity = findCached(entityClass, Collections.singletonList(id)).get(AssociationHandler.keyOf(id));
         if (entity != null)
             return entity;
 
-        String idColumn = entityParser.extractIdColumnName(entityClass);
-        String tableName = entityParser.extractTableName(entityClass);
-        String sql = QueryBuilder.buildFindByIdQuery(tableName, idColumn, id);
+        String sql = associationHandler.findByIdQuery(entityClass);
 
-        Statement stm = null;
+        PreparedStatement stm = null;
         boolean createdConn = false;
         try {
             createdConn = openConnection();
-            stm = activeConn.createStatement();
-            ResultSet resultSet = stm.executeQuery(sql);
+            stm = activeConn.prepareStatement(sql);
+            stm.setObject(1, id);
+            ResultSet resultSet = stm.executeQuery();
 
-            List<Map<String, Object>> entityMaps = convertResultSetToListOfMaps(resultSet);
-            List<T> result = convertListOfMapsToListOfEntities(entityClass, entityMaps);
+            List<T> result = initializeEntities(convertResultSetToRows(entityClass, sql, resultSet));
 
             if (result.size() > 0)
                 return result.get(0);
@@ -208,7 +493,7 @@ public class EntityManager {
         } catch (SQLException e) {
             throw new QueryException(String.format(
                     "An error occurred while searching for an entity of class: %s with an id: %s. Error: %s",
-                    entityClass.getSimpleName(), id.toString(), e.getMessage()));
+                    entityClass.getSimpleName(), id.toString(), errorMessage(e)), e);
         } finally {
             commitAndClose(createdConn, stm);
         }
@@ -221,7 +506,7 @@ public class EntityManager {
         String sql = "SELECT * FROM " + tableName;
         boolean whereAdded = false;
         if (entityClass.getSuperclass() != Object.class) {
-            sql = sql + " WHERE " +
+            sql = sql + " WHERE " + tableName + "." +
                     entityParser.getDiscriminatorColumnName(entityClass)
                     + "=" + QueryBuilder.objToString(entityParser.getDiscriminatorValue(entityClass));
             whereAdded = true;
@@ -229,6 +514,54 @@ public class EntityManager {
         return new LazyList<>(sql, entityClass, this, false, whereAdded);
     }
 
+    public void load(Object entity, String property)
+            throws AnnotationException, EntityLoaderException, EntityIdException, EntityException, QueryException {
+        load(Collections.singletonList(entity), property);
+    }
+
+    /**
+     * Loads the given column, by its property or column name, of entities of the same class in batches
+     * of {@link #setBatchFetchSize(int)} ids. Used for columns marked with @Basic(fetch = LAZY) or @Lob,
+     * which entities are loaded without.
+     */
+    public void load(Collection<?> entities, String property)
+            throws AnnotationException, EntityLoaderException, EntityIdException, EntityException, QueryException {
+        if (entities.isEmpty())
+            return;
+        Class<?> entityClass = EntityMetadata.of(entities.iterator().next().getClass()).getEntityClass();
+        entityParser.verifyItsEntityClass(entityClass);
+        ColumnMetadata column = EntityMetadata.of(entityClass).getColumn(property);
+        if (column == null || column.isId())
+            throw new QueryException(String.format("Class %s does not have a column named %s.",
+                    entityClass.getSimpleName(), property));
+
+        Map<Object, List<Object>> entitiesById = new LinkedHashMap<>();
+        for (Object entity : entities) {
+            if (!entityClass.isInstance(entity))
+                throw new QueryException(String.format("Only entities of class %s can be loaded together.",
+                        entityClass.getSimpleName()));
+            Object id = entityParser.extractId(entity).getValue();
+            if (id == null)
+                throw new QueryException("Columns of entities without an id can't be loaded.");
+            entitiesById.computeIfAbsent(AssociationHandler.keyOf(id), k -> new ArrayList<>()).add(entity);
+        }
+
+        String tableName = entityParser.extractTableName(entityClass);
+        String idColumn = entityParser.extractIdColumnName(entityClass);
+        int batchSize = Math.max(batchFetchSize, 1);
+        for (List<Object> chunk : AssociationHandler.chunks(new ArrayList<>(entitiesById.keySet()), batchSize)) {
+            Object[] params = AssociationHandler.padded(chunk, batchSize);
+            String sql = QueryBuilder.buildSelectInQuery(
+                    tableName, idColumn + ", " + column.getName(), idColumn, params.length);
+            for (Map<String, Object> row : preparedQuery(sql, params)) {
+                for (Object entity : entitiesById.get(AssociationHandler.keyOf(row.get(idColumn)))) {
+                    entityParser.populateColumn(entity, column, row.get(column.getName()));
+                    snapshots.columnLoaded(entity, column.getName(), column.get(entity));
+                }
+            }
+        }
+    }
+
     public List<Map<String, Object>> query(String sql) throws QueryException {
         Statement stm = null;
         boolean createdConn = false;
@@ -240,7 +573,7 @@ public class EntityManager {
 
         } catch (SQLException e) {
             throw new QueryException(String.format("An error occurred while executing query:'%s'. Error: %s",
-                    sql, e.getMessage()));
+                    sql, errorMessage(e)), e);
         } finally {
             commitAndClose(createdConn, stm);
         }
@@ -249,8 +582,22 @@ public class EntityManager {
     public <T> List<T> query(String sql, Class<T> entityClass)
             throws AnnotationException, EntityLoaderException, EntityIdException, EntityException, QueryException {
         entityParser.verifyItsEntityClass(entityClass);
-        List<Map<String, Object>> rows = query(sql);
-        return convertListOfMapsToListOfEntities(entityClass, rows);
+        List<AbstractMap.SimpleEntry<T, Map<String, Object>>> rows;
+        Statement stm = null;
+        boolean createdConn = false;
+        try {
+            createdConn = openConnection();
+            stm = activeConn.createStatement();
+            ResultSet resultSet = stm.executeQuery(sql);
+            rows = convertResultSetToRows(entityClass, sql, resultSet);
+
+        } catch (SQLException e) {
+            throw new QueryException(String.format("An error occurred while executing query:'%s'. Error: %s",
+                    sql, errorMessage(e)), e);
+        } finally {
+            commitAndClose(createdConn, stm);
+        }
+        return initializeEntities(rows);
     }
 
     public List<Map<String, Object>> preparedQuery(String sql, Object... args) throws QueryException {
@@ -267,7 +614,7 @@ public class EntityManager {
 
         } catch (SQLException e) {
             throw new QueryException(String.format("An error occurred while executing query:'%s'. Error: %s",
-                    sql, e.getMessage()));
+                    sql, errorMessage(e)), e);
         } finally {
             commitAndClose(createdConn, stm);
         }
@@ -276,8 +623,324 @@ public class EntityManager {
     public <T> List<T> preparedQuery(Class<T> entityClass, String sql, Object... args)
             throws AnnotationException, EntityLoaderException, EntityIdException, EntityException, QueryException {
         entityParser.verifyItsEntityClass(entityClass);
-        List<Map<String, Object>> rows = preparedQuery(sql, args);
-        return convertListOfMapsToListOfEntities(entityClass, rows);
+        return initializeEntities(preparedQueryRows(entityClass, sql, args));
+    }
+
+    /**
+     * Loads entities from a query which selects only some of their columns. They are not managed, cached
+     * or given their associations, and they are read-only: updating them throws, so columns which weren't
+     * selected are never written over.
+     */
+    <T> List<T> preparedQueryPartial(Class<T> entityClass, String sql, Object... args)
+            throws AnnotationException, EntityLoaderException, EntityIdException, EntityException, QueryException {
+        List<T> result = new ArrayList<>();
+        for (AbstractMap.SimpleEntry<T, Map<String, Object>> row : preparedQueryRows(entityClass, sql, args)) {
+            snapshots.markReadOnly(row.getKey());
+            result.add(row.getKey());
+        }
+        return result;
+    }
+
+    private <T> List<AbstractMap.SimpleEntry<T, Map<String, Object>>> preparedQueryRows(
+            Class<T> entityClass, String sql, Object... args) throws QueryException {
+        List<AbstractMap.SimpleEntry<T, Map<String, Object>>> rows;
+        PreparedStatement stm = null;
+        boolean createdConn = false;
+        try {
+            createdConn = openConnection();
+            stm = activeConn.prepareStatement(sql);
+            for (int i = 0; i < args.length; i++) {
+                stm.setObject(i + 1, args[i]);
+            }
+            ResultSet resultSet = stm.executeQuery();
+            rows = convertResultSetToRows(entityClass, sql, resultSet);
+
+        } catch (SQLException e) {
+            throw new QueryException(String.format("An error occurred while executing query:'%s'. Error: %s",
+                    sql, errorMessage(e)), e);
+        } finally {
+            commitAndClose(createdConn, stm);
+        }
+        return rows;
+    }
+
+    /**
+     * Same as preparedQuery, but when a query cache is configured the ids it returns are cached by the
+     * SQL text and arguments, until worm writes to one of the tables the query reads from.
+     */
+    public <T> List<T> cachedQuery(Class<T> entityClass, String sql, Object... args)
+            throws AnnotationException, EntityLoaderException, EntityIdException, EntityException, QueryException {
+        entityParser.verifyItsEntityClass(entityClass);
+        return cachedQuery(entityClass, sql, args, () -> preparedQuery(entityClass, sql, args));
+    }
+
+    /**
+     * Runs the query through the query cache. Queries reading from tables which were written to and not
+     * committed yet, like the ones written in a running transaction, bypass the cache, and so do queries
+     * whose tables can't be determined.
+     */
+    <T> List<T> cachedQuery(Class<T> entityClass, String sql, Object[] args, Supplier<List<T>> query)
+            throws AnnotationException, EntityLoaderException, EntityIdException, EntityException, QueryException {
+        if (queryCache == null)
+            return query.get();
+        Set<String> tables = QueryCache.tablesOf(sql);
+        if (tables == null || uncommittedTables.contains(QueryCache.ALL_TABLES))
+            return query.get();
+        tables.add(QueryCache.normalize(entityParser.extractTableName(entityClass)));
+        if (!Collections.disjoint(tables, uncommittedTables))
+            return query.get();
+
+        List<Object> ids = queryCache.get(entityClass, sql, args);
+        if (ids != null) {
+            List<T> result = findAllById(entityClass, ids);
+            if (result != null)
+                return result;
+        }
+
+        long[] versions = queryCache.versionsOf(tables);
+        List<T> result = query.get();
+        ids = new ArrayList<>(result.size());
+        for (T entity : result) {
+            ids.add(entityParser.extractId(entity).getValue());
+        }
+        queryCache.put(entityClass, sql, args, tables, versions, ids);
+        return result;
+    }
+
+    /**
+     * Loads entities in the order of the given ids, from the caches first and with IN (...) queries for the rest.
+     * Returns null if any of them doesn't exist anymore.
+     */
+    private <T> List<T> findAllById(Class<T> entityClass, List<Object> ids)
+            throws AnnotationException, EntityLoaderException, EntityIdException, EntityException, QueryException {
+        Map<Object, Object> found = new HashMap<>();
+        List<Object> missing = new ArrayList<>();
+        for (Object id : ids) {
+            Object entity = getFromCache(entityClass, id);
+            if (entity != null)
+                found.put(AssociationHandler.keyOf(id), entity);
+            else
+                missing.add(id);
+        }
+        found.putAll(findCached(entityClass, missing));
+        missing.removeIf(id -> found.containsKey(AssociationHandler.keyOf(id)));
+
+        String tableName = entityParser.extractTableName(entityClass);
+        String idColumn = entityParser.extractIdColumnName(entityClass);
+        String columns = associationHandler.selectColumns(entityClass);
+        int batchSize = Math.max(batchFetchSize, 1);
+        for (List<Object> chunk : AssociationHandler.chunks(missing, batchSize)) {
+            Object[] params = AssociationHandler.padded(chunk, batchSize);
+            String sql = QueryBuilder.buildSelectInQuery(tableName, columns, idColumn, params.length);
+            for (T entity : preparedQuery(entityClass, sql, params)) {
+                found.put(AssociationHandler.keyOf(entityParser.extractId(entity).getValue()), entity);
+            }
+        }
+
+        List<T> result = new ArrayList<>(ids.size());
+        for (Object id : ids) {
+            Object entity = found.get(AssociationHandler.keyOf(id));
+            if (entity == null)
+                return null;
+            result.add(entityClass.cast(entity));
+        }
+        return result;
+    }
+
+    /**
+     * Returns entities one by one as rows are read from a forward-only cursor. With MySQL Connector/J rows are
+     * streamed from the server one at a time, or streamFetchSize at a time when the url sets useCursorFetch=true,
+     * so the whole result is never held in memory. Other drivers get streamFetchSize as a fetch size hint.
+     * The stream must be closed (e.g. with try-with-resources) unless it is consumed to the end.
+     * Outside of a transaction the cursor uses its own connection. Inside one it uses the transaction's connection,
+     * which can't run other queries until the cursor is closed, so associations of streamed entities are loaded
+     * lazily and shouldn't be accessed before the stream is closed.
+     */
+    public <T> Stream<T> stream(Class<T> entityClass, String sql, Object... args)
+            throws AnnotationException, QueryException {
+        entityParser.verifyItsEntityClass(entityClass);
+        Connection conn = null;
+        PreparedStatement stm = null;
+        boolean ownConnection = !transactionActive;
+        long stamp = ownConnection && sharedCache != null ? sharedCache.stamp() : readStamp;
+        try {
+            conn = ownConnection ? dbSource.getConnection() : activeConn;
+            stm = conn.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            stm.setFetchSize(driverFetchSize(conn));
+            for (int i = 0; i < args.length; i++) {
+                stm.setObject(i + 1, args[i]);
+            }
+            ResultSet resultSet = stm.executeQuery();
+            ResultSetIterator<T> iterator = new ResultSetIterator<>(sql, rowMapper(entityClass, resultSet, null),
+                    resultSet, stm, ownConnection ? conn : null, stamp, streamChunkSize());
+            return StreamSupport.stream(
+                    Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                    .onClose(iterator::close);
+
+        } catch (SQLException e) {
+            throw closeAll(new QueryException(String.format("An error occurred while executing query:'%s'. " +
+                    "Error: %s", sql, errorMessage(e)), e), stm, ownConnection ? conn : null);
+        }
+    }
+
+    /**
+     * MySQL Connector/J reads the whole result into memory whatever the fetch size is, unless the url sets
+     * useCursorFetch=true or the fetch size is Integer.MIN_VALUE, which streams rows one by one.
+     */
+    private int driverFetchSize(Connection conn) throws SQLException {
+        if (streamFetchSize <= 0)
+            return streamFetchSize;
+        DatabaseMetaData meta = conn.getMetaData();
+        boolean mysql = meta.getDriverName().startsWith("MySQL");
+        if (mysql && !meta.getURL().toLowerCase().contains("usecursorfetch=true"))
+            return Integer.MIN_VALUE;
+        return streamFetchSize;
+    }
+
+    private int streamChunkSize() {
+        return Math.max(streamFetchSize > 0 ? streamFetchSize : batchFetchSize, 1);
+    }
+
+    /**
+     * Number of rows fetched from the database at once by {@link #stream(Class, String, Object...)} and hydrated
+     * together. MySQL fetches rows one by one instead, unless the url sets useCursorFetch=true.
+     * Zero leaves the fetch size to the driver.
+     */
+    public void setStreamFetchSize(int streamFetchSize) {
+        this.streamFetchSize = streamFetchSize;
+    }
+
+    /**
+     * Eager associations of all entities returned by one query are loaded together, with at most batchFetchSize
+     * keys per IN (...) query. Values of 1 or less load them entity by entity instead.
+     */
+    public void setBatchFetchSize(int batchFetchSize) {
+        this.batchFetchSize = batchFetchSize;
+    }
+
+    int getBatchFetchSize() {
+        return batchFetchSize;
+    }
+
+    /**
+     * Same as preparedQuery, but each entity is returned together with the value of keyColumn in its row.
+     */
+    <T> List<AbstractMap.SimpleEntry<T, Object>> preparedQueryWithKey(
+            Class<T> entityClass, String keyColumn, String sql, Object... args)
+            throws AnnotationException, EntityLoaderException, EntityIdException, EntityException, QueryException {
+        List<AbstractMap.SimpleEntry<T, Map<String, Object>>> rows;
+        PreparedStatement stm = null;
+        boolean createdConn = false;
+        try {
+            createdConn = openConnection();
+            stm = activeConn.prepareStatement(sql);
+            for (int i = 0; i < args.length; i++) {
+                stm.setObject(i + 1, args[i]);
+            }
+            ResultSet resultSet = stm.executeQuery();
+            rows = convertResultSetToRows(entityClass, sql, resultSet, keyColumn);
+
+        } catch (SQLException e) {
+            throw new QueryException(String.format("An error occurred while executing query:'%s'. Error: %s",
+                    sql, errorMessage(e)), e);
+        } finally {
+            commitAndClose(createdConn, stm);
+        }
+
+        List<Object> keys = new ArrayList<>(rows.size());
+        for (AbstractMap.SimpleEntry<T, Map<String, Object>> row : rows) {
+            keys.add(row.getValue().get(keyColumn));
+        }
+        List<T> entities = initializeEntities(rows);
+        List<AbstractMap.SimpleEntry<T, Object>> result = new ArrayList<>(rows.size());
+        for (int i = 0; i < entities.size(); i++) {
+            result.add(new AbstractMap.SimpleEntry<>(entities.get(i), keys.get(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Column values of the entity, with its id.
+     */
+    Map<String, Object> columnValues(Object entity) {
+        return entityParser.parse(entity, true);
+    }
+
+    String selectColumns(Class<?> entityClass) {
+        return associationHandler.selectColumns(entityClass);
+    }
+
+    String composeJoinFetchSelect(Class<?> entityClass, List<AssociationMetadata> joins) {
+        return associationHandler.composeJoinFetchSelect(entityClass, joins);
+    }
+
+    /**
+     * Runs a query built on top of composeJoinFetchSelect. Root entities and the joined ones are hydrated
+     * from the same rows, so joined associations are not fetched again.
+     */
+    <T> List<T> preparedQueryWithJoins(Class<T> entityClass, List<AssociationMetadata> joins, String sql,
+                                       Object... args)
+            throws AnnotationException, EntityLoaderException, EntityIdException, EntityException, QueryException {
+        List<AbstractMap.SimpleEntry<T, Map<String, Object>>> rows = new ArrayList<>();
+        Map<AssociationMetadata, Map<Object, AbstractMap.SimpleEntry<Object, Map<String, Object>>>> joined =
+                new LinkedHashMap<>();
+        PreparedStatement stm = null;
+        boolean createdConn = false;
+        try {
+            createdConn = openConnection();
+            stm = activeConn.prepareStatement(sql);
+            for (int i = 0; i < args.length; i++) {
+                stm.setObject(i + 1, args[i]);
+            }
+            ResultSet resultSet = stm.executeQuery();
+            ResultSetMetaData meta = resultSet.getMetaData();
+            RowMapper<T> mapper = rowMapper(entityClass, resultSet, null);
+            List<RowMapper<?>> joinMappers = new ArrayList<>();
+            int[] joinIdIndexes = new int[joins.size()];
+            for (int i = 0; i < joins.size(); i++) {
+                AssociationMetadata join = joins.get(i);
+                Class<?> targetType = join.getTargetType();
+                String prefix = AssociationHandler.joinAlias(i) + AssociationHandler.JOIN_ALIAS_SEPARATOR;
+                joinMappers.add(RowMapper.of(targetType, meta,
+                        associationHandler.getParentForeignKeyColumns(targetType), prefix));
+                joinIdIndexes[i] = resultSet.findColumn(prefix + entityParser.extractIdColumnName(targetType));
+                joined.put(join, new LinkedHashMap<>());
+            }
+
+            while (resultSet.next()) {
+                AbstractMap.SimpleEntry<T, Map<String, Object>> row = mapper.map(resultSet);
+                rows.add(row);
+                for (int i = 0; i < joins.size(); i++) {
+                    AssociationMetadata join = joins.get(i);
+                    Object id = resultSet.getObject(joinIdIndexes[i]);
+                    Object target = null;
+                    if (id != null)
+                        target = getFromCache(join.getTargetType(), id);
+                    if (id != null && target == null) {
+                        Map<Object, AbstractMap.SimpleEntry<Object, Map<String, Object>>> targets = joined.get(join);
+                        AbstractMap.SimpleEntry<Object, Map<String, Object>> targetRow = targets.get(id);
+                        if (targetRow == null) {
+                            targetRow = new AbstractMap.SimpleEntry<>(joinMappers.get(i).map(resultSet));
+                            targets.put(id, targetRow);
+                        }
+                        target = targetRow.getKey();
+                    }
+                    join.set(row.getKey(), target);
+                }
+            }
+
+        } catch (SQLException e) {
+            throw new QueryException(String.format("An error occurred while executing query:'%s'. Error: %s",
+                    sql, errorMessage(e)), e);
+        } finally {
+            commitAndClose(createdConn, stm);
+        }
+
+        List<List<AbstractMap.SimpleEntry<Object, Map<String, Object>>>> joinedRows = new ArrayList<>();
+        for (Map<Object, AbstractMap.SimpleEntry<Object, Map<String, Object>>> targets : joined.values()) {
+            joinedRows.add(new ArrayList<>(targets.values()));
+        }
+        return initializeEntities(rows, new HashSet<>(joins), joinedRows);
     }
 
     void executeUpdate(String sql, Object... args) throws QueryException {
@@ -290,18 +953,179 @@ public class EntityManager {
                 stm.setObject(i + 1, args[i]);
             }
             stm.executeUpdate();
+            statementWritten(sql);
+
+        } catch (SQLException e) {
+            throw new QueryException(String.format("An error occurred while executing query:'%s'. Error: %s",
+                    sql, errorMessage(e)), e);
+        } finally {
+            commitAndClose(createdConn, stm);
+        }
+
+    }
+
+    /**
+     * Runs the statement once for every set of arguments, as a single batch.
+     */
+    void executeBatchUpdate(String sql, List<Object[]> args) throws QueryException {
+        if (args.isEmpty())
+            return;
+        PreparedStatement stm = null;
+        boolean createdConn = false;
+        try {
+            createdConn = openConnection();
+            stm = activeConn.prepareStatement(sql);
+            for (Object[] row : args) {
+                for (int i = 0; i < row.length; i++) {
+                    stm.setObject(i + 1, row[i]);
+                }
+                stm.addBatch();
+            }
+            stm.executeBatch();
+            statementWritten(sql);
 
         } catch (SQLException e) {
             throw new QueryException(String.format("An error occurred while executing query:'%s'. Error: %s",
-                    sql, e.getMessage()));
+                    sql, errorMessage(e)), e);
         } finally {
             commitAndClose(createdConn, stm);
         }
+    }
+
+    public void begin() throws TransactionException {
+        if (transactionActive)
+            throw new TransactionException("Transaction is already active! Please commit or rollback it first.");
+        try {
+            openConnection();
+        } catch (SQLException e) {
+            throw new TransactionException(
+                    String.format("An error occurred while trying to begin a transaction. Error: %s", errorMessage(e)), e);
+        }
+        transactionActive = true;
+        persistenceContext = new IdentityMap(identityMapSize);
+    }
+
+    public void commit() throws TransactionException {
+        endTransaction(true);
+    }
+
+    public void rollback() throws TransactionException {
+        endTransaction(false);
+    }
+
+    public boolean isTransactionActive() {
+        return transactionActive;
+    }
+
+    /**
+     * Inside a transaction every entity is loaded only once: finds and queries return the instance which is
+     * already managed for the same id. The identity map is scoped to the transaction only, outside of one
+     * every call reads fresh entities and no entity is managed: each call then runs on its own connection and
+     * commits at once, so nothing would mark where entities kept between calls stop reflecting their rows.
+     * Returns whether the given entity is the instance managed for its id.
+     */
+    public boolean contains(Object entity) throws EntityIdException, EntityException {
+        if (persistenceContext == null || entity == null)
+            return false;
+        return persistenceContext.get(entity.getClass(), entityParser.extractId(entity).getValue()) == entity;
+    }
+
+    /**
+     * Stops managing the given entity, so the next lookup of its id loads a new instance.
+     */
+    public void detach(Object entity) throws EntityIdException, EntityException {
+        if (contains(entity))
+            forget(entity);
+    }
+
+    /**
+     * Stops managing all entities of the current transaction.
+     */
+    public void clear() {
+        if (persistenceContext != null)
+            persistenceContext.clear();
+    }
+
+    /**
+     * Maximum number of entities managed by a transaction, least recently used ones are detached first.
+     * Takes effect from the next transaction.
+     */
+    public void setIdentityMapSize(int identityMapSize) {
+        if (identityMapSize <= 0)
+            throw new IllegalArgumentException("Identity map size must be positive.");
+        this.identityMapSize = identityMapSize;
+    }
+
+    /**
+     * Runs the given work inside a transaction which is committed when the work returns
+     * and rolled back when it throws.
+     */
+    public <T> T inTransaction(Function<EntityManager, T> work) throws TransactionException {
+        begin();
+        T result;
+        try {
+            result = work.apply(this);
+        } catch (RuntimeException | Error e) {
+            try {
+                rollback();
+            } catch (TransactionException rollbackError) {
+                e.addSuppressed(rollbackError);
+            }
+            throw e;
+        }
+        commit();
+        return result;
+    }
+
+    private void endTransaction(boolean commit) throws TransactionException {
+        if (!transactionActive)
+            throw new TransactionException("There is no active transaction! Please call begin first.");
+        transactionActive = false;
+        persistenceContext = null;
+        boolean committed = false;
+        try {
+            if (commit) {
+                activeConn.commit();
+                committed = true;
+            } else
+                activeConn.rollback();
+        } catch (SQLException e) {
+            throw new TransactionException(String.format("An error occurred while trying to %s a transaction. Error: %s",
+                    commit ? "commit" : "rollback", errorMessage(e)), e);
+        } finally {
+            if (!committed)
+                discardUncommittedState();
+            invalidateUncommittedWrites();
+            try {
+                activeConn.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            activeConn = null;
+        }
+    }
 
+    /**
+     * Runs work which hydrates rows read when the second-level cache's clock was at stamp,
+     * e.g. rows of a stream opened earlier.
+     */
+    private <R> R withReadStamp(long stamp, Supplier<R> work) {
+        long previous = readStamp;
+        boolean pinned = readStampPinned;
+        readStamp = pinned ? Math.min(previous, stamp) : stamp;
+        readStampPinned = true;
+        try {
+            return work.get();
+        } finally {
+            readStamp = previous;
+            readStampPinned = pinned;
+        }
     }
 
     private boolean openConnection() throws SQLException {
         if (activeConn == null) {
+            if (!readStampPinned)
+                readStamp = sharedCache == null ? 0 : sharedCache.stamp();
             activeConn = dbSource.getConnection();
             activeConn.setAutoCommit(false);
             return true;
@@ -309,10 +1133,60 @@ public class EntityManager {
         return false;
     }
 
+    /**
+     * Rolls back the writes of a failed call which opened its own connection, so none of them are applied,
+     * and returns the failure to be thrown.
+     */
+    private <E extends RuntimeException> E rolledBack(boolean createdConn, E failure) {
+        if (!createdConn || activeConn == null)
+            return failure;
+        try {
+            activeConn.rollback();
+        } catch (SQLException e) {
+            failure.addSuppressed(e);
+        } finally {
+            discardUncommittedState();
+            invalidateUncommittedWrites();
+            try {
+                activeConn.close();
+            } catch (SQLException e) {
+                failure.addSuppressed(e);
+            }
+            activeConn = null;
+        }
+        return failure;
+    }
+
+    /**
+     * Takes the snapshot of a written entity, remembering it until the write is committed.
+     */
+    private void takeWrittenSnapshot(Object entity, Map<String, Object> columns) {
+        snapshots.take(entity, columns);
+        uncommittedSnapshots.add(entity);
+    }
+
+    /**
+     * Once writes are rolled back, snapshots taken from them no longer match the database and ids generated
+     * for inserted entities belong to no row, so both are dropped. Deleted entities get their ids back.
+     */
+    private void discardUncommittedState() {
+        uncommittedSnapshots.forEach(snapshots::remove);
+        for (Object entity : uncommittedInserts) {
+            forget(entity);
+            entityParser.setId(entity, null);
+        }
+        uncommittedDeletes.forEach(entityParser::setId);
+    }
+
     private void commitAndClose(boolean closeConn, Statement stm) {
         try {
-            if (closeConn && activeConn != null)
-                activeConn.commit();
+            if (closeConn && activeConn != null) {
+                try {
+                    activeConn.commit();
+                } finally {
+                    invalidateUncommittedWrites();
+                }
+            }
             if (stm != null) stm.close();
             if (closeConn && activeConn != null) {
                 activeConn.close();
@@ -325,23 +1199,86 @@ public class EntityManager {
 
     private List<Map<String, Object>> convertResultSetToListOfMaps(ResultSet resultSet) throws SQLException {
         List<Map<String, Object>> res = new ArrayList<>();
+        ResultSetMetaData meta = resultSet.getMetaData();
+        int colCount = meta.getColumnCount();
+        String[] colNames = new String[colCount];
+        for (int i = 1; i <= colCount; i++) {
+            colNames[i - 1] = meta.getColumnLabel(i);
+        }
         while (resultSet.next()) {
-            ResultSetMetaData meta = resultSet.getMetaData();
-            int colCount = meta.getColumnCount();
-            Map<String, Object> mappedRow = new HashMap<>();
+            Map<String, Object> mappedRow = new HashMap<>(colCount * 2);
             for (int i = 1; i <= colCount; i++) {
-                String colName = meta.getColumnLabel(i);
-                Object colValue = resultSet.getObject(i);
-                mappedRow.put(colName, colValue);
+                mappedRow.put(colNames[i - 1], resultSet.getObject(i));
             }
             res.add(mappedRow);
         }
         return res;
     }
 
-    private <T> List<T> convertListOfMapsToListOfEntities(Class<T> entityClass, List<Map<String, Object>> entityMaps)
+    /**
+     * Message of the database error, which pooled statements wrap in an exception of their own.
+     */
+    private static String errorMessage(SQLException e) {
+        Throwable error = e;
+        while (error.getCause() instanceof SQLException)
+            error = error.getCause();
+        return error.getMessage();
+    }
+
+    /**
+     * Closes every resource, adding errors of the ones which fail to close to failure as suppressed exceptions.
+     */
+    private static <E extends Exception> E closeAll(E failure, AutoCloseable... resources) {
+        for (AutoCloseable resource : resources) {
+            if (resource == null)
+                continue;
+            try {
+                resource.close();
+            } catch (Exception e) {
+                failure.addSuppressed(e);
+            }
+        }
+        return failure;
+    }
+
+    private <T> List<AbstractMap.SimpleEntry<T, Map<String, Object>>> convertResultSetToRows(
+            Class<T> entityClass, String sql, ResultSet resultSet) throws SQLException {
+        return convertResultSetToRows(entityClass, sql, resultSet, null);
+    }
+
+    private <T> List<AbstractMap.SimpleEntry<T, Map<String, Object>>> convertResultSetToRows(
+            Class<T> entityClass, String sql, ResultSet resultSet, String keyColumn) throws SQLException {
+        RowMapper<T> mapper = rowMapper(entityClass, resultSet, keyColumn);
+        List<AbstractMap.SimpleEntry<T, Map<String, Object>>> rows = new ArrayList<>();
+        while (resultSet.next()) {
+            rows.add(mapper.map(resultSet));
+        }
+        return rows;
+    }
+
+    private <T> RowMapper<T> rowMapper(Class<T> entityClass, ResultSet resultSet, String keyColumn)
+            throws SQLException {
+        List<String> foreignKeys = associationHandler.getParentForeignKeyColumns(entityClass);
+        if (keyColumn != null && !foreignKeys.contains(keyColumn))
+            foreignKeys.add(keyColumn);
+        return RowMapper.of(entityClass, resultSet.getMetaData(), foreignKeys);
+    }
+
+    private <T> List<T> initializeEntities(List<AbstractMap.SimpleEntry<T, Map<String, Object>>> rows)
             throws EntityLoaderException, EntityIdException, EntityException {
-        if (entityMaps.size() == 0)
+        return initializeEntities(rows, Collections.emptySet(), Collections.emptyList());
+    }
+
+    /**
+     * Fetches associations of freshly hydrated entities. Each row carries the entity together with the
+     * foreign key values of its parent associations. Entities which the persistence context already manages
+     * are replaced by the managed instances and are not initialized again.
+     */
+    private <T> List<T> initializeEntities(List<AbstractMap.SimpleEntry<T, Map<String, Object>>> rows,
+                                           Set<AssociationMetadata> preloaded,
+                                           List<List<AbstractMap.SimpleEntry<Object, Map<String, Object>>>> joinedRows)
+            throws EntityLoaderException, EntityIdException, EntityException {
+        if (rows.size() == 0)
             return new ArrayList<>();
 
         boolean cacheInit = false;
@@ -350,34 +1287,288 @@ public class EntityManager {
             cache = new HashMap<>();
         }
 
-        Map<T, Map<String, Object>> result = new LinkedHashMap<>();
-        for (Map<String, Object> entityMap : entityMaps) {
-            T entity = entityParser.convertRowToEntity(entityClass, entityMap, null);
-            addToCache(entity);
-            result.put(entity, entityMap);
+        List<List<AbstractMap.SimpleEntry<Object, Map<String, Object>>>> joinedToInitialize = new ArrayList<>();
+        for (List<AbstractMap.SimpleEntry<Object, Map<String, Object>>> joined : joinedRows) {
+            joinedToInitialize.add(register(joined, new ArrayList<>()));
+        }
+        List<T> result = new ArrayList<>(rows.size());
+        List<AbstractMap.SimpleEntry<T, Map<String, Object>>> toInitialize = register(rows, result);
+
+        for (List<AbstractMap.SimpleEntry<Object, Map<String, Object>>> joined : joinedToInitialize) {
+            associationHandler.fetchAssociations(joined, Collections.emptySet());
         }
+        associationHandler.fetchAssociations(toInitialize, preloaded);
 
-        for (Map.Entry<T, Map<String, Object>> resultEntry : result.entrySet()) {
-            associationHandler.fetchAssociations(resultEntry.getKey(), resultEntry.getValue());
+        for (List<AbstractMap.SimpleEntry<Object, Map<String, Object>>> joined : joinedToInitialize) {
+            joined.forEach(row -> snapshots.take(row.getKey(), row.getValue()));
         }
+        toInitialize.forEach(row -> snapshots.take(row.getKey(), row.getValue()));
 
         if (cacheInit)
             cache = null;
 
-        return new ArrayList<>(result.keySet());
+        return result;
+    }
+
+    private <T> List<AbstractMap.SimpleEntry<T, Map<String, Object>>> register(
+            List<AbstractMap.SimpleEntry<T, Map<String, Object>>> rows, List<T> entities) {
+        List<AbstractMap.SimpleEntry<T, Map<String, Object>>> fresh = new ArrayList<>(rows.size());
+        for (AbstractMap.SimpleEntry<T, Map<String, Object>> row : rows) {
+            T entity = row.getKey();
+            @SuppressWarnings("unchecked")
+            T managed = persistenceContext == null ? null : (T) persistenceContext.get(
+                    entity.getClass(), entityParser.extractId(entity).getValue());
+            if (managed != null && managed != entity) {
+                entities.add(managed);
+                continue;
+            }
+            addToCache(entity);
+            if (usesSharedCache(entity.getClass()))
+                sharedCache.put(entity, entityParser.extractId(entity).getValue(),
+                        entityParser.parse(entity, true), row.getValue(), readStamp);
+            entities.add(entity);
+            fresh.add(row);
+        }
+        return fresh;
     }
 
     private void addToCache(Object entity) throws EntityIdException, EntityException {
         Map<Object, Object> classCache = cache.computeIfAbsent(entity.getClass(), k -> new LinkedHashMap<>());
-        classCache.put(entityParser.extractId(entity).getValue(), entity);
+        Object id = entityParser.extractId(entity).getValue();
+        classCache.put(id, entity);
+        if (persistenceContext != null)
+            persistenceContext.put(entity, id);
     }
 
     Object getFromCache(Class<?> entityClass, Object id) {
-        if (cache == null)
-            return null;
-        Map<Object, Object> classCache = cache.get(entityClass);
-        if (classCache == null)
-            return null;
-        return classCache.get(id);
+        if (cache != null) {
+            Map<Object, Object> classCache = cache.get(entityClass);
+            if (classCache != null && classCache.containsKey(id))
+                return classCache.get(id);
+        }
+        if (persistenceContext != null)
+            return persistenceContext.get(entityClass, id);
+        return null;
+    }
+
+    private void manage(Object entity) throws EntityIdException, EntityException {
+        if (persistenceContext != null)
+            persistenceContext.put(entity, entityParser.extractId(entity).getValue());
+        invalidate(entity);
+    }
+
+    private void forget(Object entity) throws EntityIdException, EntityException {
+        if (persistenceContext != null)
+            persistenceContext.remove(entity.getClass(), entityParser.extractId(entity).getValue());
+    }
+
+    /**
+     * Drops managed entities of the given class, after their rows were changed by a statement
+     * which didn't go through them.
+     */
+    void evict(Class<?> entityClass) {
+        if (persistenceContext != null)
+            persistenceContext.evict(entityClass);
+        if (sharedCache != null) {
+            uncommittedWrites.put(EntityMetadata.of(entityClass).getRootClass(), null);
+            if (activeConn == null)
+                invalidateUncommittedWrites();
+        }
+    }
+
+    /**
+     * Loads entities with the given ids from the second-level cache and initializes them together.
+     * Returned map is keyed by AssociationHandler.keyOf(id), ids which are not cached are left out.
+     */
+    <T> Map<Object, T> findCached(Class<T> entityClass, Collection<Object> ids)
+            throws EntityLoaderException, EntityIdException, EntityException {
+        if (!usesSharedCache(entityClass))
+            return Collections.emptyMap();
+        List<AbstractMap.SimpleEntry<T, Map<String, Object>>> rows = new ArrayList<>();
+        for (Object id : ids) {
+            SecondLevelCache.CachedEntity cached = sharedCache.get(entityClass, id);
+            if (cached == null)
+                continue;
+            T entity = entityClass.cast(entityParser.convertRowToEntity(cached.entityClass, cached.columns));
+            rows.add(new AbstractMap.SimpleEntry<>(entity, new HashMap<>(cached.foreignKeys)));
+        }
+
+        Map<Object, T> result = new HashMap<>();
+        for (T entity : initializeEntities(rows)) {
+            result.put(AssociationHandler.keyOf(entityParser.extractId(entity).getValue()), entity);
+        }
+        return result;
+    }
+
+    /**
+     * Classes written and not committed yet, like the ones written in a running transaction, bypass
+     * the second-level cache, so neither uncommitted state is shared nor stale state is read back.
+     */
+    private boolean usesSharedCache(Class<?> entityClass) {
+        if (sharedCache == null || !sharedCache.isCacheable(entityClass))
+            return false;
+        return !uncommittedWrites.containsKey(EntityMetadata.of(entityClass).getRootClass());
+    }
+
+    /**
+     * Tables written by a statement, or all tables if they can't be determined from it.
+     */
+    private void statementWritten(String sql) {
+        Set<String> tables = QueryCache.tablesOf(sql);
+        if (tables == null)
+            tableWritten(QueryCache.ALL_TABLES);
+        else
+            tables.forEach(this::tableWritten);
+    }
+
+    /**
+     * Queries reading from the table are invalidated right away and again once the write is committed,
+     * so results read by other entity managers before the commit are not kept.
+     */
+    private void tableWritten(String tableName) {
+        if (queryCache == null)
+            return;
+        queryCache.invalidate(tableName);
+        uncommittedTables.add(QueryCache.normalize(tableName));
+        if (activeConn == null)
+            invalidateUncommittedWrites();
+    }
+
+    /**
+     * Entities are removed from the second-level cache once the write is committed.
+     */
+    private void invalidate(Object entity) throws EntityIdException, EntityException {
+        if (sharedCache == null || !sharedCache.isCacheable(entity.getClass()))
+            return;
+        Object id = entityParser.extractId(entity).getValue();
+        Class<?> rootClass = EntityMetadata.of(entity.getClass()).getRootClass();
+        if (!uncommittedWrites.containsKey(rootClass))
+            uncommittedWrites.put(rootClass, new HashSet<>());
+        Set<Object> ids = uncommittedWrites.get(rootClass);
+        if (ids != null)
+            ids.add(id);
+        if (activeConn == null)
+            invalidateUncommittedWrites();
+    }
+
+    /**
+     * Called once writes are committed (or rolled back). Other entity managers may have cached the old state
+     * in the meantime; SecondLevelCache stamps keep them from caching it again once it is removed.
+     * A null id set means the whole class was evicted.
+     */
+    private void invalidateUncommittedWrites() {
+        if (queryCache != null)
+            uncommittedTables.forEach(queryCache::invalidate);
+        uncommittedTables.clear();
+        if (sharedCache != null) {
+            for (Map.Entry<Class<?>, Set<Object>> write : uncommittedWrites.entrySet()) {
+                if (write.getValue() == null) {
+                    sharedCache.evict(write.getKey());
+                    continue;
+                }
+                for (Object id : write.getValue()) {
+                    sharedCache.remove(write.getKey(), id);
+                }
+            }
+        }
+        uncommittedWrites.clear();
+        uncommittedSnapshots.clear();
+        uncommittedInserts.clear();
+        uncommittedDeletes.clear();
+    }
+
+    private static class BatchRow {
+        final Object entity;
+        final List<Object> values;
+        final Map<String, Object> columns;
+
+        BatchRow(Object entity, List<Object> values, Map<String, Object> columns) {
+            this.entity = entity;
+            this.values = values;
+            this.columns = columns;
+        }
+    }
+
+    private class ResultSetIterator<T> implements Iterator<T> {
+        private final String sql;
+        private final RowMapper<T> mapper;
+        private final ResultSet resultSet;
+        private final Statement stm;
+        private final Connection conn;
+        private final long stamp;
+        private final int chunkSize;
+        private final Deque<T> hydrated = new ArrayDeque<>();
+        private boolean closed = false;
+
+        ResultSetIterator(String sql, RowMapper<T> mapper, ResultSet resultSet, Statement stm, Connection conn,
+                          long stamp, int chunkSize) {
+            this.sql = sql;
+            this.mapper = mapper;
+            this.resultSet = resultSet;
+            this.stm = stm;
+            this.conn = conn;
+            this.stamp = stamp;
+            this.chunkSize = chunkSize;
+        }
+
+        /**
+         * Rows are hydrated in chunks, so their associations are batch fetched. On a connection of its own
+         * that happens through the entity manager's connection; on the transaction's connection, which can't
+         * run other queries while the cursor is open, associations of streamed entities are loaded lazily.
+         */
+        @Override
+        public boolean hasNext() {
+            if (!hydrated.isEmpty())
+                return true;
+            if (closed)
+                return false;
+            try {
+                List<AbstractMap.SimpleEntry<T, Map<String, Object>>> rows = new ArrayList<>(chunkSize);
+                while (rows.size() < chunkSize && resultSet.next()) {
+                    rows.add(mapper.map(resultSet));
+                }
+                if (rows.size() < chunkSize)
+                    close();
+                if (rows.isEmpty())
+                    return false;
+                if (conn == null && !closed)
+                    hydrated.addAll(associationHandler.withLazyAssociations(
+                            () -> withReadStamp(stamp, () -> initializeEntities(rows))));
+                else
+                    hydrated.addAll(withReadStamp(stamp, () -> initializeEntities(rows)));
+                return true;
+
+            } catch (SQLException e) {
+                throw close(new QueryException(String.format("An error occurred while reading results of " +
+                        "query:'%s'. Error: %s", sql, errorMessage(e)), e));
+            } catch (RuntimeException e) {
+                throw close(e);
+            }
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return hydrated.poll();
+        }
+
+        void close() {
+            QueryException error = close(new QueryException(String.format(
+                    "An error occurred while closing results of query:'%s'.", sql)));
+            if (error.getSuppressed().length > 0)
+                throw error;
+        }
+
+        /**
+         * Closes the cursor once, adding errors of closing it to failure.
+         */
+        private <E extends RuntimeException> E close(E failure) {
+            if (!closed) {
+                closed = true;
+                closeAll(failure, resultSet, stm, conn);
+            }
+            return failure;
+        }
     }
 }
@@ -3,23 +3,67 @@ package com.mmaricic.worm;
 import com.mmaricic.worm.exceptions.DatabaseConfigurationException;
 import org.apache.commons.dbcp2.BasicDataSource;
 
+import javax.sql.DataSource;
 import java.sql.SQLException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
 
 public class EntityManagerFactory {
-    private static BasicDataSource dataSource = null;
+    public static final int DEFAULT_STATEMENT_CACHE_SIZE = 64;
+
+    private static DataSource dataSource = null;
+    private static boolean ownsDataSource = false;
+    private static SecondLevelCache secondLevelCache = null;
+    private static QueryCache queryCache = null;
+    private static ExecutorService asyncExecutor = null;
+    private static final ThreadLocal<CurrentEntityManager> currentEntityManager = new ThreadLocal<>();
+    private static volatile int configurationVersion = 0;
 
     public static void configureDatabase(String driver, String url, String username, String password) {
-        if (dataSource != null) {
-            throw new DatabaseConfigurationException("Database configuration was already set! If you are completely " +
-                    "sure that you are finished with using current database please call removeConfiguration first " +
-                    "and then configure a new one.");
+        configureDatabase(new DatabaseConfiguration(driver, url, username, password));
+    }
+
+    /**
+     * Prepared statements are kept open per pooled connection, up to statementCacheSize of them, and the
+     * least recently used one is closed when the limit is reached. Pass 0 to disable statement caching.
+     */
+    public static void configureDatabase(
+            String driver, String url, String username, String password, int statementCacheSize) {
+        configureDatabase(new DatabaseConfiguration(driver, url, username, password)
+                .statementCacheSize(statementCacheSize));
+    }
+
+    public static void configureDatabase(DatabaseConfiguration configuration) {
+        verifyNotConfigured();
+        dataSource = configuration.createDataSource();
+        ownsDataSource = true;
+    }
+
+    /**
+     * Uses an externally managed data source (e.g. HikariCP). Its lifecycle stays with the caller,
+     * removeConfiguration will not close it.
+     */
+    public static void configureDatabase(DataSource externalDataSource) {
+        if (externalDataSource == null) {
+            throw new DatabaseConfigurationException("Data source can't be null.");
         }
-        dataSource = new BasicDataSource();
-        dataSource.setDriverClassName(driver);
-        dataSource.setUrl(url);
-        dataSource.setUsername(username);
-        dataSource.setPassword(password);
+        verifyNotConfigured();
+        dataSource = externalDataSource;
+        ownsDataSource = false;
+    }
+
+    /**
+     * Shares the given cache between all entity managers created from now on. Pass null to disable it.
+     */
+    public static void configureSecondLevelCache(SecondLevelCache cache) {
+        secondLevelCache = cache;
+    }
 
+    /**
+     * Shares the given query cache between all entity managers created from now on. Pass null to disable it.
+     */
+    public static void configureQueryCache(QueryCache cache) {
+        queryCache = cache;
     }
 
     public static EntityManager getEntityManager() {
@@ -27,12 +71,91 @@ public class EntityManagerFactory {
             throw new DatabaseConfigurationException(
                     "Configuration for database needs to be set first (EntityManagerFactory.configureDatabase).");
         }
-        return new EntityManager(dataSource);
+        return new EntityManager(dataSource, secondLevelCache, queryCache);
+    }
+
+    /**
+     * Returns the entity manager bound to the calling thread, creating it on first use. Threads which are
+     * reused for unrelated work (e.g. request threads) should call releaseCurrentEntityManager when done.
+     * After the database is configured again, threads get a new entity manager.
+     */
+    public static EntityManager getCurrentEntityManager() {
+        CurrentEntityManager current = currentEntityManager.get();
+        if (current == null || current.version != configurationVersion) {
+            current = new CurrentEntityManager(getEntityManager(), configurationVersion);
+            currentEntityManager.set(current);
+        }
+        return current.entityManager;
+    }
+
+    /**
+     * Unbinds the entity manager of the calling thread. Its active transaction, if any, is rolled back.
+     */
+    public static void releaseCurrentEntityManager() {
+        CurrentEntityManager current = currentEntityManager.get();
+        currentEntityManager.remove();
+        if (current != null && current.entityManager.isTransactionActive())
+            current.entityManager.rollback();
+    }
+
+    /**
+     * Async operations run on an executor shared by the factory, which runs at most as many of them at once
+     * as the connection pool allows (or as there are processors, for external data sources).
+     */
+    public static synchronized AsyncEntityManager getAsyncEntityManager() {
+        getEntityManager();
+        if (asyncExecutor == null) {
+            int maxConcurrency = Runtime.getRuntime().availableProcessors();
+            if (ownsDataSource && ((BasicDataSource) dataSource).getMaxTotal() > 0)
+                maxConcurrency = ((BasicDataSource) dataSource).getMaxTotal();
+            asyncExecutor = AsyncEntityManager.newExecutor(maxConcurrency);
+        }
+        return new AsyncEntityManager(EntityManagerFactory::getEntityManager, asyncExecutor);
+    }
+
+    /**
+     * Async operations run on the given executor, whose lifecycle stays with the caller.
+     */
+    public static AsyncEntityManager getAsyncEntityManager(Executor executor) {
+        getEntityManager();
+        return new AsyncEntityManager(EntityManagerFactory::getEntityManager, executor);
     }
 
     public static void removeConfiguration() throws SQLException {
-        if (dataSource != null)
-            dataSource.close();
+        configurationVersion++;
+        currentEntityManager.remove();
+        synchronized (EntityManagerFactory.class) {
+            if (asyncExecutor != null)
+                asyncExecutor.shutdown();
+            asyncExecutor = null;
+        }
+        if (dataSource != null && ownsDataSource)
+            ((BasicDataSource) dataSource).close();
         dataSource = null;
+        ownsDataSource = false;
+        if (secondLevelCache != null)
+            secondLevelCache.evictAll();
+        secondLevelCache = null;
+        if (queryCache != null)
+            queryCache.evictAll();
+        queryCache = null;
+    }
+
+    private static class CurrentEntityManager {
+        final EntityManager entityManager;
+        final int version;
+
+        CurrentEntityManager(EntityManager entityManager, int version) {
+            this.entityManager = entityManager;
+            this.version = version;
+        }
+    }
+
+    private static void verifyNotConfigured() {
+        if (dataSource != null) {
+            throw new DatabaseConfigurationException("Database configuration was already set! If you are completely " +
+                    "sure that you are finished with using current database please call removeConfiguration first " +
+                    "and then configure a new one.");
+        }
     }
 }
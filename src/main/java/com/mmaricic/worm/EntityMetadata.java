@@ -0,0 +1,607 @@
+package com.mmaricic.worm;
+
+import com.mmaricic.worm.exceptions.AnnotationException;
+import com.mmaricic.worm.exceptions.EntityIdException;
+import com.mmaricic.worm.exceptions.EntityIdException.EntityIdExceptionType;
+import com.mmaricic.worm.exceptions.EntityLoaderException;
+import net.sf.cglib.proxy.Factory;
+
+import javax.persistence.*;
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.invoke.MethodHandle;
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * Everything worm needs to know about an entity class, discovered once per class.
+ * Instances are immutable and shared between all entity managers and threads.
+ */
+class EntityMetadata {
+    private static final ClassValue<EntityMetadata> registry = new ClassValue<>() {
+        @Override
+        protected EntityMetadata computeValue(Class<?> type) {
+            if (Factory.class.isAssignableFrom(type) && type.getSuperclass() != Object.class)
+                return of(type.getSuperclass());
+            return new EntityMetadata(type);
+        }
+    };
+
+    private final Class<?> entityClass;
+    private final Class<?> rootClass;
+    private final boolean entity;
+    private final boolean rootEntity;
+    private final String tableName;
+    private final boolean fieldAccess;
+    private final EntityIdExceptionType accessError;
+    private final EntityIdExceptionType idError;
+    private final String annotationError;
+    private final ColumnMetadata id;
+    private final boolean idAutoGenerated;
+    private final List<ColumnMetadata> columns;
+    private final List<AssociationMetadata> associations;
+    private final boolean discriminated;
+    private final String discriminatorColumn;
+    private final String discriminatorValue;
+    private final boolean cacheable;
+    private final Constructor<?> constructor;
+    private final MethodHandle constructorHandle;
+
+    static EntityMetadata of(Class<?> entityClass) {
+        return registry.get(entityClass);
+    }
+
+    private EntityMetadata(Class<?> entityClass) {
+        this.entityClass = entityClass;
+        entity = entityClass.isAnnotationPresent(Entity.class);
+
+        Class<?> root = entityClass;
+        while (root.getSuperclass() != null && root.getSuperclass() != Object.class) {
+            root = root.getSuperclass();
+        }
+        rootClass = root;
+        rootEntity = root.isAnnotationPresent(Entity.class);
+        Table table = root.getAnnotation(Table.class);
+        tableName = table != null ? table.name() : root.getSimpleName().toLowerCase();
+
+        discriminated = entityClass.getSuperclass() != Object.class
+                || entityClass.getAnnotation(Inheritance.class) != null;
+        DiscriminatorColumn dc = root.getAnnotation(DiscriminatorColumn.class);
+        discriminatorColumn = dc != null ? dc.name() : "dtype";
+        DiscriminatorValue dv = entityClass.getAnnotation(DiscriminatorValue.class);
+        discriminatorValue = dv != null ? dv.value() : entityClass.getSimpleName();
+        Cacheable cacheableAnnotation = root.getAnnotation(Cacheable.class);
+        cacheable = cacheableAnnotation != null && cacheableAnnotation.value();
+
+        constructor = findDefaultConstructor(entityClass);
+        constructorHandle = constructor == null ? null : PropertyAccessor.unreflectConstructor(constructor);
+
+        List<Field> idFields = new ArrayList<>();
+        for (Field field : root.getDeclaredFields()) {
+            if (field.isAnnotationPresent(Id.class))
+                idFields.add(field);
+        }
+
+        Builder builder = new Builder(entityClass);
+        if (idFields.size() > 1) {
+            fieldAccess = true;
+            accessError = EntityIdExceptionType.MULTIPLE_IDS;
+        } else if (idFields.size() == 1) {
+            fieldAccess = true;
+            accessError = null;
+            builder.collectFromFields(entityClass, true, builder.columns, builder.associations);
+        } else {
+            fieldAccess = false;
+            accessError = null;
+            builder.collectFromGetters(entityClass, builder.columns, builder.associations);
+        }
+
+        ColumnMetadata idColumn = null;
+        EntityIdExceptionType idProblem = accessError;
+        if (idProblem == null) {
+            List<ColumnMetadata> ids = builder.findIdColumns(root);
+            if (ids.isEmpty())
+                idProblem = EntityIdExceptionType.NO_ID;
+            else if (ids.size() > 1)
+                idProblem = EntityIdExceptionType.MULTIPLE_IDS;
+            else
+                idColumn = ids.get(0);
+        }
+        id = idColumn;
+        idError = idProblem;
+        idAutoGenerated = idColumn != null && idColumn.element.isAnnotationPresent(GeneratedValue.class);
+        annotationError = builder.annotationError;
+        columns = Collections.unmodifiableList(builder.columns);
+        associations = Collections.unmodifiableList(builder.associations);
+    }
+
+    Class<?> getEntityClass() {
+        return entityClass;
+    }
+
+    Class<?> getRootClass() {
+        return rootClass;
+    }
+
+    boolean isEntity() {
+        return entity;
+    }
+
+    boolean isRootEntity() {
+        return rootEntity;
+    }
+
+    String getTableName() {
+        return tableName;
+    }
+
+    boolean isFieldAccess() throws EntityIdException {
+        verifyAccessType();
+        return fieldAccess;
+    }
+
+    ColumnMetadata getId() throws EntityIdException {
+        if (idError != null)
+            throw new EntityIdException(rootClass.getSimpleName(), idError);
+        return id;
+    }
+
+    boolean isIdAutoGenerated() {
+        return idAutoGenerated;
+    }
+
+    List<ColumnMetadata> getColumns() throws EntityIdException {
+        verifyAccessType();
+        return columns;
+    }
+
+    /**
+     * Names of all mapped columns, with columns of embedded objects in place of the embedded property.
+     */
+    List<String> getColumnNames() throws EntityIdException {
+        List<String> names = new ArrayList<>();
+        collectColumnNames(getColumns(), names);
+        return names;
+    }
+
+    private static void collectColumnNames(List<ColumnMetadata> columns, List<String> names) {
+        for (ColumnMetadata column : columns) {
+            if (column.isEmbedded())
+                collectColumnNames(column.getEmbeddedColumns(), names);
+            else
+                names.add(column.getName());
+        }
+    }
+
+    /**
+     * Whether some columns are loaded only on demand, see {@link ColumnMetadata#isLazy()}.
+     */
+    boolean hasLazyColumns() throws EntityIdException {
+        for (ColumnMetadata column : getColumns()) {
+            if (column.isLazy())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Column which is not embedded, by its column or property name.
+     */
+    ColumnMetadata getColumn(String name) throws EntityIdException {
+        for (ColumnMetadata column : getColumns()) {
+            if (!column.isEmbedded() && (column.getName().equals(name) || column.getPropertyName().equals(name)))
+                return column;
+        }
+        return null;
+    }
+
+    List<AssociationMetadata> getAssociations() throws EntityIdException {
+        verifyAccessType();
+        return associations;
+    }
+
+    /**
+     * Whether the hierarchy is marked with @Cacheable, which opts it into the second-level cache.
+     */
+    boolean isCacheable() {
+        return cacheable;
+    }
+
+    boolean isDiscriminated() {
+        return discriminated;
+    }
+
+    String getDiscriminatorColumn() {
+        return discriminatorColumn;
+    }
+
+    String getDiscriminatorValue() {
+        return discriminatorValue;
+    }
+
+    void verifyPersistable() throws EntityIdException, AnnotationException {
+        verifyAccessType();
+        if (annotationError != null)
+            throw new AnnotationException(annotationError);
+        getId();
+    }
+
+    Object newInstance() throws EntityLoaderException {
+        return instantiate(constructorHandle, constructor, entityClass);
+    }
+
+    private void verifyAccessType() throws EntityIdException {
+        if (accessError != null)
+            throw new EntityIdException(rootClass.getSimpleName(), accessError);
+    }
+
+    private static Constructor<?> findDefaultConstructor(Class<?> type) {
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (NoSuchMethodException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static Object instantiate(MethodHandle handle, Constructor<?> constructor, Class<?> type)
+            throws EntityLoaderException {
+        if (constructor == null)
+            throw new EntityLoaderException(String.format(
+                    "Entity class %s does not have a default constructor.", type.getSimpleName()));
+        if (handle != null) {
+            try {
+                return (Object) handle.invokeExact();
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new EntityLoaderException(String.format(
+                        "Default constructor for entity class %s threw the following error: %S",
+                        type.getSimpleName(), e.getMessage()));
+            }
+        }
+        try {
+            return constructor.newInstance();
+        } catch (IllegalAccessException e) {
+            throw new EntityLoaderException(String.format(
+                    "Constructor for entity class %s is not accessible. Please make it public",
+                    type.getSimpleName()));
+        } catch (InstantiationException e) {
+            throw new EntityLoaderException(String.format(
+                    "Entity class %s is abstract!", type.getSimpleName()));
+        } catch (InvocationTargetException e) {
+            throw new EntityLoaderException(String.format(
+                    "Default constructor for entity class %s threw the following error: %S",
+                    type.getSimpleName(), e.getMessage()));
+        }
+    }
+
+    private static boolean isAssociation(AnnotatedElement ae) {
+        return ae.getAnnotation(OneToMany.class) != null
+                || ae.getAnnotation(ManyToOne.class) != null
+                || ae.getAnnotation(ManyToMany.class) != null
+                || ae.getAnnotation(OneToOne.class) != null;
+    }
+
+    private static class Builder {
+        private final Class<?> entityClass;
+        private final List<ColumnMetadata> columns = new ArrayList<>();
+        private final List<AssociationMetadata> associations = new ArrayList<>();
+        private String annotationError;
+
+        Builder(Class<?> entityClass) {
+            this.entityClass = entityClass;
+        }
+
+        void collectFromFields(Class<?> type, boolean entityLevel,
+                               List<ColumnMetadata> columns, List<AssociationMetadata> associations) {
+            for (Class<?> current = type; current != null && current != Object.class;
+                 current = current.getSuperclass()) {
+                for (Field field : current.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (isAssociation(field)) {
+                        if (entityLevel && !Modifier.isStatic(modifiers))
+                            associations.add(new AssociationMetadata(
+                                    entityClass, field, PropertyAccessor.forField(field), field.getGenericType()));
+                        continue;
+                    }
+                    if (!isPersistent(field, current))
+                        continue;
+                    if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers))
+                        continue;
+
+                    PropertyAccessor accessor = PropertyAccessor.forField(field);
+                    if (field.getAnnotation(Embedded.class) != null) {
+                        List<ColumnMetadata> embedded = new ArrayList<>();
+                        collectFromFields(field.getType(), false, embedded, null);
+                        columns.add(new ColumnMetadata(field.getName(), field, accessor, embedded));
+                        continue;
+                    }
+                    Column column = field.getAnnotation(Column.class);
+                    columns.add(new ColumnMetadata(
+                            column != null ? column.name() : field.getName(), field, accessor, null));
+                }
+            }
+        }
+
+        void collectFromGetters(Class<?> type, List<ColumnMetadata> columns, List<AssociationMetadata> associations) {
+            for (PropertyDescriptor descriptor : getPropertyDescriptors(type)) {
+                Method getMethod = descriptor.getReadMethod();
+                if (getMethod == null)
+                    continue;
+
+                PropertyAccessor accessor = PropertyAccessor.forProperty(
+                        descriptor.getName(), type, getMethod, descriptor.getWriteMethod());
+                if (isAssociation(getMethod)) {
+                    if (associations != null)
+                        associations.add(new AssociationMetadata(
+                                entityClass, getMethod, accessor, getMethod.getGenericReturnType()));
+                    continue;
+                }
+                if (!isPersistent(getMethod, type))
+                    continue;
+
+                if (getMethod.getAnnotation(Embedded.class) != null) {
+                    List<ColumnMetadata> embedded = new ArrayList<>();
+                    collectFromGetters(getMethod.getReturnType(), embedded, null);
+                    columns.add(new ColumnMetadata(descriptor.getName(), getMethod, accessor, embedded));
+                    continue;
+                }
+                Column column = getMethod.getAnnotation(Column.class);
+                columns.add(new ColumnMetadata(
+                        column != null ? column.name() : descriptor.getName(), getMethod, accessor, null));
+            }
+        }
+
+        List<ColumnMetadata> findIdColumns(Class<?> root) {
+            List<ColumnMetadata> ids = new ArrayList<>();
+            for (ColumnMetadata column : columns) {
+                if (column.isId())
+                    ids.add(column);
+            }
+            if (!ids.isEmpty() || root == entityClass)
+                return ids;
+
+            // Id declared on a root getter that the subclass overrides without the annotation.
+            Builder rootBuilder = new Builder(root);
+            rootBuilder.collectFromGetters(root, rootBuilder.columns, null);
+            for (ColumnMetadata column : rootBuilder.columns) {
+                if (column.isId())
+                    ids.add(column);
+            }
+            return ids;
+        }
+
+        private boolean isPersistent(AnnotatedElement ae, Class<?> declaringClass) {
+            if (ae.getAnnotation(Transient.class) != null)
+                return false;
+            if (ae.getAnnotation(GeneratedValue.class) != null && ae.getAnnotation(Id.class) == null) {
+                if (annotationError == null)
+                    annotationError = String.format(
+                            "Bad annotation in class %s. @GeneratedValue can only be used with @Id annotation.",
+                            declaringClass.getSimpleName());
+                return false;
+            }
+            return true;
+        }
+
+        private static PropertyDescriptor[] getPropertyDescriptors(Class<?> type) {
+            try {
+                return Introspector.getBeanInfo(type, Object.class).getPropertyDescriptors();
+            } catch (IntrospectionException e) {
+                throw new EntityLoaderException(String.format(
+                        "An error occurred while trying to parse entity class: %s, message: %s",
+                        type.getSimpleName(), e.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * A persistent property. Embedded properties don't map to a column themselves,
+     * they carry the columns of the embeddable type instead.
+     */
+    static class ColumnMetadata {
+        private final String name;
+        private final AnnotatedElement element;
+        private final PropertyAccessor accessor;
+        private final boolean id;
+        private final boolean lazy;
+        private final List<ColumnMetadata> embeddedColumns;
+        private final Constructor<?> embeddedConstructor;
+        private final MethodHandle embeddedConstructorHandle;
+
+        private ColumnMetadata(String name, AnnotatedElement element, PropertyAccessor accessor,
+                               List<ColumnMetadata> embeddedColumns) {
+            this.name = name;
+            this.element = element;
+            this.accessor = accessor;
+            this.id = element.isAnnotationPresent(Id.class);
+            Basic basic = element.getAnnotation(Basic.class);
+            this.lazy = !id && embeddedColumns == null && (basic != null
+                    ? basic.fetch() == FetchType.LAZY : element.isAnnotationPresent(Lob.class));
+            this.embeddedColumns = embeddedColumns == null ? null : Collections.unmodifiableList(embeddedColumns);
+            this.embeddedConstructor = embeddedColumns == null ? null : findDefaultConstructor(accessor.getType());
+            this.embeddedConstructorHandle = embeddedConstructor == null
+                    ? null : PropertyAccessor.unreflectConstructor(embeddedConstructor);
+        }
+
+        String getName() {
+            return name;
+        }
+
+        Class<?> getType() {
+            return accessor.getType();
+        }
+
+        String getPropertyName() {
+            String name = ((Member) element).getName();
+            if (element instanceof Field)
+                return name;
+            return Introspector.decapitalize(name.substring(name.startsWith("is") ? 2 : 3));
+        }
+
+        boolean isId() {
+            return id;
+        }
+
+        /**
+         * Columns marked with @Basic(fetch = LAZY), and @Lob columns which don't say otherwise,
+         * are not selected with their entity, see {@link EntityManager#load(Collection, String)}.
+         */
+        boolean isLazy() {
+            return lazy;
+        }
+
+        boolean isEmbedded() {
+            return embeddedColumns != null;
+        }
+
+        List<ColumnMetadata> getEmbeddedColumns() {
+            return embeddedColumns;
+        }
+
+        Object get(Object target) {
+            return accessor.get(target);
+        }
+
+        void set(Object target, Object value) {
+            accessor.set(target, value);
+        }
+
+        Object newEmbeddedInstance() throws EntityLoaderException {
+            return instantiate(embeddedConstructorHandle, embeddedConstructor, accessor.getType());
+        }
+    }
+
+    static class AssociationMetadata {
+        private final Class<?> ownerClass;
+        private final AnnotatedElement element;
+        private final PropertyAccessor accessor;
+        private final Class<?> targetType;
+        private final OneToMany oneToMany;
+        private final ManyToOne manyToOne;
+        private final OneToOne oneToOne;
+        private final ManyToMany manyToMany;
+        private final String mappedBy;
+        private final Set<CascadeType> cascades;
+        private final FetchType fetch;
+        private final boolean orphanRemoval;
+
+        private AssociationMetadata(Class<?> ownerClass, AnnotatedElement element, PropertyAccessor accessor,
+                                    Type genericType) {
+            this.ownerClass = ownerClass;
+            this.element = element;
+            this.accessor = accessor;
+            oneToMany = element.getAnnotation(OneToMany.class);
+            manyToOne = element.getAnnotation(ManyToOne.class);
+            oneToOne = element.getAnnotation(OneToOne.class);
+            manyToMany = element.getAnnotation(ManyToMany.class);
+
+            Class<?> target = accessor.getType();
+            if (Collection.class.isAssignableFrom(target) && genericType instanceof ParameterizedType) {
+                Type argument = ((ParameterizedType) genericType).getActualTypeArguments()[0];
+                if (argument instanceof Class)
+                    target = (Class<?>) argument;
+            }
+            targetType = target;
+
+            if (oneToMany != null) {
+                mappedBy = oneToMany.mappedBy();
+                cascades = EnumSet.noneOf(CascadeType.class);
+                cascades.addAll(Arrays.asList(oneToMany.cascade()));
+                fetch = oneToMany.fetch();
+                orphanRemoval = oneToMany.orphanRemoval();
+            } else if (oneToOne != null) {
+                mappedBy = oneToOne.mappedBy();
+                cascades = EnumSet.noneOf(CascadeType.class);
+                cascades.addAll(Arrays.asList(oneToOne.cascade()));
+                fetch = oneToOne.fetch();
+                orphanRemoval = oneToOne.orphanRemoval();
+            } else if (manyToMany != null) {
+                mappedBy = manyToMany.mappedBy();
+                cascades = EnumSet.noneOf(CascadeType.class);
+                cascades.addAll(Arrays.asList(manyToMany.cascade()));
+                fetch = manyToMany.fetch();
+                orphanRemoval = false;
+            } else {
+                mappedBy = "";
+                cascades = EnumSet.noneOf(CascadeType.class);
+                cascades.addAll(Arrays.asList(manyToOne.cascade()));
+                fetch = manyToOne.fetch();
+                orphanRemoval = false;
+            }
+        }
+
+        Class<?> getOwnerClass() {
+            return ownerClass;
+        }
+
+        AnnotatedElement getElement() {
+            return element;
+        }
+
+        String getName() {
+            return accessor.getName();
+        }
+
+        Class<?> getTargetType() {
+            return targetType;
+        }
+
+        boolean isOneToMany() {
+            return oneToMany != null;
+        }
+
+        boolean isManyToOne() {
+            return manyToOne != null;
+        }
+
+        boolean isOneToOne() {
+            return oneToOne != null;
+        }
+
+        boolean isManyToMany() {
+            return manyToMany != null;
+        }
+
+        String getMappedBy() {
+            return mappedBy;
+        }
+
+        /**
+         * Associations whose foreign key lives in this entity's table.
+         */
+        boolean isParent() {
+            return manyToOne != null || oneToOne != null && mappedBy.isEmpty();
+        }
+
+        /**
+         * Associations whose foreign key lives in the other entity's table or in a join table.
+         */
+        boolean isChild() {
+            return oneToMany != null || manyToMany != null || oneToOne != null && !mappedBy.isEmpty();
+        }
+
+        Set<CascadeType> getCascades() {
+            return cascades;
+        }
+
+        FetchType getFetch() {
+            return fetch;
+        }
+
+        boolean isOrphanRemoval() {
+            return orphanRemoval;
+        }
+
+        Object get(Object entity) {
+            return accessor.get(entity);
+        }
+
+        void set(Object entity, Object value) {
+            accessor.set(entity, value);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.mmaricic.worm;
 
+import net.sf.cglib.proxy.Enhancer;
+import net.sf.cglib.proxy.Factory;
 import net.sf.cglib.proxy.MethodInterceptor;
 import net.sf.cglib.proxy.MethodProxy;
 
@@ -7,27 +9,64 @@ import java.lang.reflect.Method;
 import java.util.List;
 
 public class EntityProxy<T> implements MethodInterceptor {
+    /**
+     * One proxy instance of each entity class, whose generated class creates all its other proxies.
+     */
+    private static final ClassValue<Factory> factories = new ClassValue<>() {
+        @Override
+        protected Factory computeValue(Class<?> type) {
+            Enhancer enhancer = new Enhancer();
+            enhancer.setSuperclass(type);
+            enhancer.setCallback((MethodInterceptor) (o, method, args, proxy) -> proxy.invokeSuper(o, args));
+            return (Factory) enhancer.create();
+        }
+    };
 
-    private T entity;
-    private boolean invoked = false;
+    private volatile T entity;
+    private volatile boolean invoked = false;
     private final Class<T> entityClass;
     private final EntityManager entityManager;
     private final String query;
+    private final Object[] params;
 
-    public EntityProxy(Class<T> entityClass, EntityManager entityManager, String query) {
+    public EntityProxy(Class<T> entityClass, EntityManager entityManager, String query, Object... params) {
         this.entityClass = entityClass;
         this.entityManager = entityManager;
         this.query = query;
+        this.params = params;
+    }
+
+    /**
+     * Creates a proxy of entityClass which loads the entity returned by the query on its first method call.
+     */
+    static <T> T create(Class<T> entityClass, EntityManager entityManager, String query, Object... params) {
+        EntityProxy<T> interceptor = new EntityProxy<>(entityClass, entityManager, query, params);
+        return entityClass.cast(factories.get(entityClass).newInstance(interceptor));
+    }
+
+    boolean isInitialized() {
+        return invoked;
     }
 
     @Override
     public Object intercept(Object o, Method method, Object[] objects, MethodProxy methodProxy) throws Throwable {
+        return method.invoke(load(), objects);
+    }
+
+    /**
+     * Runs the query once, even when the proxy is first used by several threads at the same time.
+     */
+    private T load() {
         if (!invoked) {
-            List<T> result = entityManager.query(query, entityClass);
-            if (result.size() == 1)
-                entity = result.get(0);
-            invoked = true;
+            synchronized (this) {
+                if (!invoked) {
+                    List<T> result = entityManager.preparedQuery(entityClass, query, params);
+                    if (result.size() == 1)
+                        entity = result.get(0);
+                    invoked = true;
+                }
+            }
         }
-        return method.invoke(entity, objects);
+        return entity;
     }
 }
@@ -0,0 +1,256 @@
+package com.mmaricic.worm;
+
+import com.mmaricic.worm.EntityMetadata.AssociationMetadata;
+import net.sf.cglib.proxy.Factory;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+
+/**
+ * State of entities as they were last loaded or written by an entity manager, used to update only what
+ * changed since. Entities are held weakly and by identity, so entities the application dropped are forgotten.
+ * Snapshots hold column values (with foreign keys of parent associations) and, for child associations,
+ * weak references to the instances that were set, so snapshots never keep entities reachable.
+ * Lazy associations which were never loaded count as unchanged.
+ */
+class EntitySnapshots {
+    private final Map<IdentityKey, Snapshot> snapshots = new HashMap<>();
+    private final Set<IdentityKey> readOnly = new HashSet<>();
+    private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+    private final EntityParser entityParser;
+    private final AssociationHandler associationHandler;
+
+    EntitySnapshots(EntityParser entityParser, AssociationHandler associationHandler) {
+        this.entityParser = entityParser;
+        this.associationHandler = associationHandler;
+    }
+
+    /**
+     * Takes the snapshot of the entity with the given values of its parent foreign keys,
+     * once its associations are set.
+     */
+    void take(Object entity, Map<String, Object> foreignKeys) {
+        expunge();
+        Map<String, Object> columns = copyOf(entityParser.parse(entity, false));
+        for (String foreignKey : associationHandler.getParentForeignKeyColumns(entity.getClass())) {
+            columns.put(foreignKey, AssociationHandler.keyOf(foreignKeys.get(foreignKey)));
+        }
+
+        Map<AssociationMetadata, Reference<Object>> associations = new HashMap<>();
+        Map<AssociationMetadata, List<Reference<Object>>> elements = new HashMap<>();
+        for (AssociationMetadata association : EntityMetadata.of(entity.getClass()).getAssociations()) {
+            if (!association.isChild())
+                continue;
+            Object value = association.get(entity);
+            associations.put(association, value == null ? null : new WeakReference<>(value));
+            if (value instanceof Collection && isLoaded(value)) {
+                List<Reference<Object>> references = new ArrayList<>();
+                for (Object element : (Collection<?>) value) {
+                    references.add(new WeakReference<>(element));
+                }
+                elements.put(association, references);
+            }
+        }
+        snapshots.put(new IdentityKey(entity, queue), new Snapshot(columns, associations, elements));
+    }
+
+    /**
+     * Marks the entity as read-only instead of taking its snapshot. Entities loaded with only some of their
+     * columns are, so their other columns are never written over.
+     */
+    void markReadOnly(Object entity) {
+        expunge();
+        snapshots.remove(new IdentityKey(entity, null));
+        readOnly.add(new IdentityKey(entity, queue));
+    }
+
+    boolean isReadOnly(Object entity) {
+        return readOnly.contains(new IdentityKey(entity, null));
+    }
+
+    /**
+     * Records the value of a column which was loaded after the snapshot was taken.
+     */
+    void columnLoaded(Object entity, String column, Object value) {
+        Snapshot snapshot = snapshots.get(new IdentityKey(entity, null));
+        if (snapshot == null)
+            return;
+        if (value == null)
+            snapshot.columns.remove(column);
+        else
+            snapshot.columns.put(column, copyOf(value));
+    }
+
+    int size() {
+        expunge();
+        return snapshots.size();
+    }
+
+    void remove(Object entity) {
+        expunge();
+        snapshots.remove(new IdentityKey(entity, null));
+        readOnly.remove(new IdentityKey(entity, null));
+    }
+
+    /**
+     * Returns the entries of current whose values differ from the snapshot, with null for columns which
+     * were set and are not anymore. Returns null if the entity has no snapshot.
+     */
+    Map<String, Object> changedColumns(Object entity, Map<String, Object> current) {
+        Snapshot snapshot = snapshots.get(new IdentityKey(entity, null));
+        if (snapshot == null)
+            return null;
+
+        Map<String, Object> changed = new LinkedHashMap<>();
+        for (Map.Entry<String, Object> column : current.entrySet()) {
+            Object value = column.getValue();
+            if (!snapshot.columns.containsKey(column.getKey())
+                    || !Objects.deepEquals(AssociationHandler.keyOf(value), snapshot.columns.get(column.getKey())))
+                changed.put(column.getKey(), value);
+        }
+        for (Map.Entry<String, Object> column : snapshot.columns.entrySet()) {
+            if (column.getValue() != null && !current.containsKey(column.getKey()))
+                changed.put(column.getKey(), null);
+        }
+        return changed;
+    }
+
+    /**
+     * Child associations which may need to be written: the ones set to other instances or collections,
+     * collections whose elements changed and the ones holding changed entities. All of them if the entity
+     * has no snapshot.
+     */
+    List<AssociationMetadata> changedAssociations(Object entity) {
+        return changedAssociations(entity, Collections.newSetFromMap(new IdentityHashMap<>()));
+    }
+
+    private List<AssociationMetadata> changedAssociations(Object entity, Set<Object> visited) {
+        visited.add(entity);
+        Snapshot snapshot = snapshots.get(new IdentityKey(entity, null));
+        List<AssociationMetadata> changed = new ArrayList<>();
+        for (AssociationMetadata association : EntityMetadata.of(entity.getClass()).getAssociations()) {
+            if (association.isChild() && (snapshot == null || isChanged(entity, association, snapshot, visited)))
+                changed.add(association);
+        }
+        return changed;
+    }
+
+    private boolean isChanged(Object entity, AssociationMetadata association, Snapshot snapshot, Set<Object> visited) {
+        Object value = association.get(entity);
+        if (!isSame(value, snapshot.associations.get(association)))
+            return true;
+        if (value == null || !isLoaded(value))
+            return false;
+        if (!(value instanceof Collection))
+            return isDirty(value, visited);
+
+        List<Reference<Object>> elements = snapshot.elements.get(association);
+        Collection<?> current = (Collection<?>) value;
+        // lazily loaded after the snapshot, so changes to its elements can't be told apart
+        if (elements == null || elements.size() != current.size())
+            return true;
+        Iterator<?> it = current.iterator();
+        for (Reference<Object> element : elements) {
+            Object next = it.next();
+            if (!isSame(next, element) || isDirty(next, visited))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * A cleared reference can't be the current value, which is still reachable.
+     */
+    private static boolean isSame(Object value, Reference<Object> reference) {
+        if (reference == null)
+            return value == null;
+        return value != null && reference.get() == value;
+    }
+
+    private boolean isDirty(Object entity, Set<Object> visited) {
+        if (visited.contains(entity) || isReadOnly(entity))
+            return false;
+        Snapshot snapshot = snapshots.get(new IdentityKey(entity, null));
+        if (snapshot == null)
+            return true;
+
+        Map<String, Object> current = entityParser.parse(entity, false);
+        for (String foreignKey : associationHandler.getParentForeignKeyColumns(entity.getClass())) {
+            current.put(foreignKey, snapshot.columns.get(foreignKey));
+        }
+        return !changedColumns(entity, current).isEmpty() || !changedAssociations(entity, visited).isEmpty();
+    }
+
+    /**
+     * Lazy lists and proxies which were loaded may have been changed in ways the snapshot can't tell.
+     */
+    private static boolean isLoaded(Object value) {
+        if (value instanceof LazyList)
+            return ((LazyList<?>) value).isInitialized();
+        if (value instanceof Factory && ((Factory) value).getCallback(0) instanceof EntityProxy)
+            return ((EntityProxy<?>) ((Factory) value).getCallback(0)).isInitialized();
+        return true;
+    }
+
+    private static Map<String, Object> copyOf(Map<String, Object> columns) {
+        Map<String, Object> copy = new HashMap<>();
+        for (Map.Entry<String, Object> column : columns.entrySet()) {
+            copy.put(column.getKey(), copyOf(column.getValue()));
+        }
+        return copy;
+    }
+
+    private static Object copyOf(Object value) {
+        if (value instanceof Date)
+            value = ((Date) value).clone();
+        else if (value instanceof byte[])
+            value = ((byte[]) value).clone();
+        return AssociationHandler.keyOf(value);
+    }
+
+    private void expunge() {
+        for (Object key; (key = queue.poll()) != null; ) {
+            snapshots.remove(key);
+            readOnly.remove(key);
+        }
+    }
+
+    private static class Snapshot {
+        final Map<String, Object> columns;
+        final Map<AssociationMetadata, Reference<Object>> associations;
+        final Map<AssociationMetadata, List<Reference<Object>>> elements;
+
+        Snapshot(Map<String, Object> columns, Map<AssociationMetadata, Reference<Object>> associations,
+                 Map<AssociationMetadata, List<Reference<Object>>> elements) {
+            this.columns = columns;
+            this.associations = associations;
+            this.elements = elements;
+        }
+    }
+
+    private static final class IdentityKey extends WeakReference<Object> {
+        private final int hash;
+
+        IdentityKey(Object entity, ReferenceQueue<Object> queue) {
+            super(entity, queue);
+            hash = System.identityHashCode(entity);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof IdentityKey))
+                return false;
+            Object entity = get();
+            return entity != null && entity == ((IdentityKey) o).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.mmaricic.worm;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Managed entities of a persistence context by their root class and id. It is bounded: when full,
+ * the least recently used entity is dropped and will simply be loaded again on the next lookup.
+ */
+class IdentityMap {
+    private final Map<Key, Object> entities;
+
+    IdentityMap(int maxSize) {
+        entities = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    Object get(Class<?> entityClass, Object id) {
+        if (id == null)
+            return null;
+        Object entity = entities.get(new Key(entityClass, id));
+        return entityClass.isInstance(entity) ? entity : null;
+    }
+
+    void put(Object entity, Object id) {
+        if (id != null)
+            entities.put(new Key(entity.getClass(), id), entity);
+    }
+
+    void remove(Class<?> entityClass, Object id) {
+        if (id != null)
+            entities.remove(new Key(entityClass, id));
+    }
+
+    void evict(Class<?> entityClass) {
+        Class<?> rootClass = EntityMetadata.of(entityClass).getRootClass();
+        Iterator<Key> it = entities.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().rootClass == rootClass)
+                it.remove();
+        }
+    }
+
+    void clear() {
+        entities.clear();
+    }
+
+    int size() {
+        return entities.size();
+    }
+
+    private static final class Key {
+        private final Class<?> rootClass;
+        private final Object id;
+
+        Key(Class<?> entityClass, Object id) {
+            this.rootClass = EntityMetadata.of(entityClass).getRootClass();
+            this.id = AssociationHandler.keyOf(id);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return rootClass == other.rootClass && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(rootClass, id);
+        }
+    }
+}
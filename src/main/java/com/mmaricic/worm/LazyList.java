@@ -1,5 +1,6 @@
 package com.mmaricic.worm;
 
+import com.mmaricic.worm.EntityMetadata.AssociationMetadata;
 import com.mmaricic.worm.exceptions.*;
 
 import java.util.*;
@@ -11,13 +12,23 @@ public class LazyList<T> implements List<T> {
     private final StringJoiner sqlJoiner;
     private boolean whereAdded;
     private final List<String> orderBy = new ArrayList<>();
+    private final List<AssociationMetadata> fetches = new ArrayList<>();
     private Integer limit = null;
     private Integer offset = null;
     private final boolean rawSql;
+    private final Object[] params;
     private boolean count;
+    private boolean cacheable = false;
+    private List<String> selected;
+    private boolean seeking = false;
+    private T after;
+    private String afterColumn;
+    private Object afterValue;
 
 
-    LazyList(String sql, Class<T> entityClass, EntityManager entityManager, boolean rawSql, boolean whereAdded) {
+    LazyList(String sql, Class<T> entityClass, EntityManager entityManager, boolean rawSql, boolean whereAdded,
+             Object... params) {
+        this.params = params;
         sqlJoiner = new StringJoiner(" ");
         sqlJoiner.add(sql);
         this.entityClass = entityClass;
@@ -37,6 +48,68 @@ public class LazyList<T> implements List<T> {
         return this;
     }
 
+    /**
+     * Loads the given @ManyToOne or @OneToOne association in the same query, through a LEFT JOIN.
+     * Joined tables are aliased j0, j1, ... in the order of fetch calls, so conditions on columns that
+     * both tables have need to be qualified with the table name or the alias.
+     */
+    public LazyList<T> fetch(String association) {
+        if (rawSql)
+            throw new QueryException("Fetch can't be used on lists of associated entities.");
+
+        AssociationMetadata found = null;
+        for (AssociationMetadata candidate : EntityMetadata.of(entityClass).getAssociations()) {
+            if (candidate.getName().equals(association))
+                found = candidate;
+        }
+        if (found == null)
+            throw new QueryException(String.format("Class %s does not have an association named %s.",
+                    entityClass.getSimpleName(), association));
+        if (!found.isManyToOne() && !found.isOneToOne())
+            throw new QueryException(String.format(
+                    "Association %s can't be fetched. Only @ManyToOne and @OneToOne associations can be joined.",
+                    association));
+
+        if (!fetches.contains(found))
+            fetches.add(found);
+        return this;
+    }
+
+    /**
+     * Selects only the given columns, besides the id (and the discriminator of inherited entities).
+     * The list holds partially populated, read-only entities which are not managed or cached and don't have
+     * their associations, see {@link EntityManager#preparedQueryPartial(Class, String, Object...)}.
+     */
+    public LazyList<T> select(String... columns) {
+        if (rawSql)
+            throw new QueryException("Select can't be used on lists of associated entities.");
+        if (selected != null)
+            throw new QueryException("You've already selected columns for your query");
+
+        EntityMetadata metadata = EntityMetadata.of(entityClass);
+        List<String> columnNames = metadata.getColumnNames();
+        selected = new ArrayList<>();
+        selected.add(metadata.getId().getName());
+        if (metadata.isDiscriminated())
+            selected.add(metadata.getDiscriminatorColumn());
+        for (String column : columns) {
+            if (!columnNames.contains(column))
+                throw new QueryException(String.format("Class %s does not have a column named %s.",
+                        entityClass.getSimpleName(), column));
+            if (!selected.contains(column))
+                selected.add(column);
+        }
+        return this;
+    }
+
+    /**
+     * Caches ids of the result in the query cache, see {@link EntityManagerFactory#configureQueryCache(QueryCache)}.
+     */
+    public LazyList<T> cacheable() {
+        cacheable = true;
+        return this;
+    }
+
     public LazyList<T> orderBy(String order) {
         String[] spl = order.split(" ");
         if (spl.length > 2)
@@ -51,6 +124,40 @@ public class LazyList<T> implements List<T> {
         return this;
     }
 
+    /**
+     * Keyset pagination: returns only rows which come after the given entity in the order set by
+     * {@link #orderBy(String)}, through an indexed WHERE (columns, id) > (values) condition instead of an offset.
+     * The id is added to the order as a tiebreaker if it isn't ordered by already.
+     */
+    public LazyList<T> after(T lastEntity) {
+        startSeek();
+        if (lastEntity == null)
+            throw new QueryException("Can't page after null entity.");
+        after = lastEntity;
+        return this;
+    }
+
+    /**
+     * Keyset pagination on a single unique column: returns only rows whose column comes after the given value.
+     * The list is ordered by the column unless it is already, and it can't be ordered by anything else.
+     */
+    public LazyList<T> pageAfter(String column, Object value) {
+        startSeek();
+        if (value == null)
+            throw new QueryException("Can't page after null value.");
+        afterColumn = column;
+        afterValue = value;
+        return this;
+    }
+
+    private void startSeek() {
+        if (rawSql)
+            throw new QueryException("Keyset pagination can't be used on lists of associated entities.");
+        if (seeking)
+            throw new QueryException("You've already set the page start for your query");
+        seeking = true;
+    }
+
     public LazyList<T> limit(int limit) {
         if (this.limit != null)
             throw new QueryException("You've already set limit for your query");
@@ -80,9 +187,31 @@ public class LazyList<T> implements List<T> {
         return delegate.get(0);
     }
 
+    /**
+     * Counts the rows of the query in the database, without loading them. A loaded list is counted in memory.
+     */
     public int count() {
-        init();
-        return delegate.size();
+        if (delegate != null)
+            return delegate.size();
+        List<Object> parameters = new ArrayList<>();
+        List<Map<String, Object>> result = entityManager.preparedQuery(
+                "SELECT COUNT(*) AS row_count" + fromSelected(parameters) + ";", parameters.toArray());
+        return ((Number) result.get(0).get("row_count")).intValue();
+    }
+
+    /**
+     * Checks whether the query has any rows, without loading them. A loaded list is checked in memory.
+     */
+    public boolean exists() {
+        if (delegate != null)
+            return !delegate.isEmpty();
+        List<Object> parameters = new ArrayList<>();
+        String sql = "SELECT 1" + fromSelected(parameters) + " LIMIT 1;";
+        return !entityManager.preparedQuery(sql, parameters.toArray()).isEmpty();
+    }
+
+    boolean isInitialized() {
+        return delegate != null;
     }
 
     private void init()
@@ -91,29 +220,158 @@ public class LazyList<T> implements List<T> {
             return;
 
         if (rawSql) {
-            delegate = entityManager.query(sqlJoiner.toString(), entityClass);
+            delegate = query(sqlJoiner.toString(), params);
             return;
         }
+        List<Object> parameters = new ArrayList<>();
+        String sql = composeSelect(parameters);
+        delegate = query(sql + ";", parameters.toArray());
+    }
 
+    private String composeSelect(List<Object> parameters) {
         if (limit == null && offset != null)
             throw new QueryException("You cannot set offset without limit");
 
-        if (orderBy.size() > 0) {
-            sqlJoiner.add("ORDER BY");
+        StringJoiner sql = new StringJoiner(" ");
+        sql.add(projected(filtered(parameters)));
+        List<String> orders = orders();
+        if (orders.size() > 0) {
+            sql.add("ORDER BY");
             StringJoiner orderJoin = new StringJoiner(", ");
-            for (String order : orderBy) {
+            for (String order : orders) {
                 orderJoin.add(order);
             }
-            sqlJoiner.add(orderJoin.toString());
+            sql.add(orderJoin.toString());
         }
 
         if (limit != null)
-            sqlJoiner.add("LIMIT").add(limit.toString());
+            sql.add("LIMIT").add(limit.toString());
 
         if (offset != null)
-            sqlJoiner.add("OFFSET").add(offset.toString());
+            sql.add("OFFSET").add(offset.toString());
+
+        if (fetches.isEmpty())
+            return sql.toString();
+
+        String selectAll = "SELECT * FROM " + EntityMetadata.of(entityClass).getTableName();
+        return entityManager.composeJoinFetchSelect(entityClass, fetches) + sql.toString().substring(selectAll.length());
+    }
+
+    /**
+     * Replaces the selected columns with the ones passed to select, or leaves out lazy columns.
+     * Join fetches pick their columns themselves.
+     */
+    private String projected(String sql) {
+        if (selected == null) {
+            String columns = entityManager.selectColumns(entityClass);
+            if (!fetches.isEmpty() || columns.equals("*"))
+                return sql;
+            return "SELECT " + columns + sql.substring("SELECT *".length());
+        }
+        if (cacheable || !fetches.isEmpty())
+            throw new QueryException("Lists of selected columns can't be cached or fetch associations.");
+
+        return "SELECT " + String.join(", ", selected) + sql.substring("SELECT *".length());
+    }
+
+    /**
+     * FROM clause of count and exists. Limited and joined queries are wrapped in a subquery, so they count
+     * exactly the rows the list would hold; others just replace the selected columns.
+     */
+    private String fromSelected(List<Object> parameters) {
+        if (rawSql) {
+            parameters.addAll(Arrays.asList(params));
+            String sql = sqlJoiner.toString();
+            return " FROM (" + (sql.endsWith(";") ? sql.substring(0, sql.length() - 1) : sql) + ") selected";
+        }
+        if (limit == null && offset == null && fetches.isEmpty())
+            return filtered(parameters).substring("SELECT *".length());
+        return " FROM (" + composeSelect(parameters) + ") selected";
+    }
+
+    /**
+     * The query with its where clauses and the keyset condition, whose values are added to parameters
+     * after the list's own.
+     */
+    private String filtered(List<Object> parameters) {
+        parameters.addAll(Arrays.asList(params));
+        if (!seeking)
+            return sqlJoiner.toString();
+
+        List<String> orders = orders();
+        boolean descending = isDescending(orders.get(0));
+        StringJoiner columns = new StringJoiner(", ", "(", ")");
+        StringJoiner placeholders = new StringJoiner(", ", "(", ")");
+        Map<String, Object> values = after == null ? null : entityManager.columnValues(after);
+        for (String order : orders) {
+            if (isDescending(order) != descending)
+                throw new QueryException(
+                        "Keyset pagination needs all order by columns to be ordered in the same direction.");
+            String column = order.split(" ")[0];
+            Object value = after == null ? afterValue : values.get(unqualified(column));
+            if (value == null)
+                throw new QueryException(String.format(
+                        "Can't page after an entity without a value for column %s.", column));
+            columns.add(column);
+            placeholders.add("?");
+            parameters.add(value);
+        }
+        String condition = orders.size() == 1
+                ? orders.get(0).split(" ")[0] + (descending ? " < ?" : " > ?")
+                : columns + (descending ? " < " : " > ") + placeholders;
+        return sqlJoiner + (whereAdded ? " AND " : " WHERE ") + condition;
+    }
+
+    /**
+     * Order by columns, with the column or the id which keyset pagination needs as its last one. The id is
+     * added to every ordered list, so the first page is ordered the same way as the pages after it.
+     */
+    private List<String> orders() {
+        if (rawSql || (!seeking && orderBy.isEmpty()))
+            return orderBy;
+
+        List<String> orders = new ArrayList<>(orderBy);
+        if (afterColumn != null) {
+            if (orders.isEmpty())
+                orders.add(afterColumn);
+            if (orders.size() > 1 || !unqualified(orders.get(0).split(" ")[0]).equals(unqualified(afterColumn)))
+                throw new QueryException(String.format(
+                        "Paging after column %s needs the list to be ordered only by it.", afterColumn));
+            return orders;
+        }
+
+        String idColumn = EntityMetadata.of(entityClass).getId().getName();
+        for (String order : orders) {
+            if (unqualified(order.split(" ")[0]).equals(idColumn))
+                return orders;
+        }
+        String direction = !orders.isEmpty() && isDescending(orders.get(0)) ? " desc" : "";
+        orders.add(EntityMetadata.of(entityClass).getTableName() + "." + idColumn + direction);
+        return orders;
+    }
+
+    private static boolean isDescending(String order) {
+        String[] spl = order.split(" ");
+        return spl.length == 2 && spl[1].equalsIgnoreCase("desc");
+    }
+
+    private static String unqualified(String column) {
+        String name = column.replace("`", "");
+        return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    private List<T> query(String sql, Object[] parameters) {
+        if (!cacheable)
+            return runQuery(sql, parameters);
+        return entityManager.cachedQuery(entityClass, sql, parameters, () -> runQuery(sql, parameters));
+    }
 
-        delegate = entityManager.query(sqlJoiner.toString() + ";", entityClass);
+    private List<T> runQuery(String sql, Object[] params) {
+        if (selected != null)
+            return entityManager.preparedQueryPartial(entityClass, sql, params);
+        if (fetches.isEmpty())
+            return entityManager.preparedQuery(entityClass, sql, params);
+        return entityManager.preparedQueryWithJoins(entityClass, fetches, sql, params);
     }
 
     @Override
@@ -0,0 +1,145 @@
+package com.mmaricic.worm;
+
+import com.mmaricic.worm.exceptions.EntityLoaderException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Reads and writes one entity property through method handles resolved when the metadata is built,
+ * so hydration and parsing don't pay for reflective access checks on every call.
+ */
+class PropertyAccessor {
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final String name;
+    private final Class<?> declaringClass;
+    private final Class<?> type;
+    private final MethodHandle getter;
+    private final MethodHandle setter;
+
+    private PropertyAccessor(String name, Class<?> declaringClass, Class<?> type,
+                             MethodHandle getter, MethodHandle setter) {
+        this.name = name;
+        this.declaringClass = declaringClass;
+        this.type = type;
+        this.getter = getter;
+        this.setter = setter;
+    }
+
+    static PropertyAccessor forField(Field field) {
+        field.setAccessible(true);
+        return new PropertyAccessor(field.getName(), field.getDeclaringClass(), field.getType(),
+                unreflectGetter(field), unreflectSetter(field));
+    }
+
+    static PropertyAccessor forProperty(String name, Class<?> beanClass, Method getMethod, Method setMethod) {
+        MethodHandle setter = null;
+        if (setMethod != null) {
+            setter = unreflect(setMethod, SETTER_TYPE);
+        } else {
+            Field field = findField(beanClass, name);
+            if (field != null && !Modifier.isStatic(field.getModifiers())) {
+                field.setAccessible(true);
+                setter = unreflectSetter(field);
+            }
+        }
+        return new PropertyAccessor(name, beanClass, getMethod.getReturnType(),
+                unreflect(getMethod, GETTER_TYPE), setter);
+    }
+
+    /**
+     * Returns a handle of type {@code ()Object} for the given constructor, or null when it can't be invoked
+     * directly; callers then fall back to reflection, which reports the actual problem.
+     */
+    static MethodHandle unreflectConstructor(Constructor<?> constructor) {
+        try {
+            constructor.setAccessible(true);
+            return MethodHandles.lookup().unreflectConstructor(constructor)
+                    .asType(MethodType.methodType(Object.class));
+        } catch (IllegalAccessException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Class<?> getType() {
+        return type;
+    }
+
+    Object get(Object target) throws EntityLoaderException {
+        try {
+            return (Object) getter.invokeExact(target);
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new EntityLoaderException(String.format(
+                    "An error occurred while trying to read property %s in entity class: %s, message: %s",
+                    name, declaringClass.getSimpleName(), e.getMessage()));
+        }
+    }
+
+    void set(Object target, Object value) throws EntityLoaderException {
+        if (setter == null)
+            throw new EntityLoaderException(String.format(
+                    "For property %s in class %s there is no matching field or setter method.",
+                    name, declaringClass.getSimpleName()));
+        try {
+            setter.invokeExact(target, value);
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new EntityLoaderException(String.format(
+                    "An error occurred while trying to set property %s in entity class: %s, message: %s",
+                    name, declaringClass.getSimpleName(), e.getMessage()));
+        }
+    }
+
+    private static MethodHandle unreflect(Method method, MethodType type) {
+        try {
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method).asType(type);
+        } catch (IllegalAccessException e) {
+            throw new EntityLoaderException(String.format("Method %s in class %s is inaccessible.",
+                    method.getName(), method.getDeclaringClass().getSimpleName()));
+        }
+    }
+
+    private static MethodHandle unreflectGetter(Field field) {
+        try {
+            return MethodHandles.lookup().unreflectGetter(field).asType(GETTER_TYPE);
+        } catch (IllegalAccessException e) {
+            throw new EntityLoaderException(String.format("Field %s in class %s is inaccessible.",
+                    field.getName(), field.getDeclaringClass().getSimpleName()));
+        }
+    }
+
+    private static MethodHandle unreflectSetter(Field field) {
+        try {
+            return MethodHandles.lookup().unreflectSetter(field).asType(SETTER_TYPE);
+        } catch (IllegalAccessException e) {
+            throw new EntityLoaderException(String.format("Field %s in class %s is inaccessible.",
+                    field.getName(), field.getDeclaringClass().getSimpleName()));
+        }
+    }
+
+    private static Field findField(Class<?> beanClass, String name) {
+        for (Class<?> current = beanClass; current != null && current != Object.class;
+             current = current.getSuperclass()) {
+            try {
+                return current.getDeclaredField(name);
+            } catch (NoSuchFieldException ignored) {
+            }
+        }
+        return null;
+    }
+}
@@ -1,11 +1,37 @@
 package com.mmaricic.worm;
 
-import java.util.Date;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.*;
+import java.util.function.Function;
 
 class QueryBuilder {
+    // Column signatures of an entity are bounded by the nullable columns it has, but raw callers are not,
+    // so the least recently used statements are dropped once the cache is full.
+    private static final int MAX_CACHED_STATEMENTS = 2048;
+    private static final Map<StatementKey, String> statementCache = Collections.synchronizedMap(
+            new LinkedHashMap<StatementKey, String>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<StatementKey, String> eldest) {
+                    return size() > MAX_CACHED_STATEMENTS;
+                }
+            });
+
     static String buildInsertQuery(String tableName, Set<String> columns) {
+        return cached(new StatementKey(StatementType.INSERT, tableName, columns, null),
+                key -> createInsertQuery(tableName, columns));
+    }
+
+    static String buildDeleteQuery(String tableName, String idColumn) {
+        return cached(new StatementKey(StatementType.DELETE, tableName, Collections.emptySet(), idColumn),
+                key -> createDeleteQuery(tableName, idColumn));
+    }
+
+    static String buildUpdateQuery(
+            String tableName, Set<String> columnsToUpdate, String idColumn) {
+        return cached(new StatementKey(StatementType.UPDATE, tableName, columnsToUpdate, idColumn),
+                key -> createUpdateQuery(tableName, columnsToUpdate, idColumn));
+    }
+
+    private static String createInsertQuery(String tableName, Set<String> columns) {
         StringBuilder cols = new StringBuilder();
         StringBuilder values = new StringBuilder();
 
@@ -28,7 +54,7 @@ class QueryBuilder {
         return query.toString();
     }
 
-    static String buildDeleteQuery(String tableName, String idColumn) {
+    private static String createDeleteQuery(String tableName, String idColumn) {
         StringBuilder query = new StringBuilder("DELETE FROM ");
         query.append(tableName);
         query.append(" WHERE ");
@@ -37,7 +63,7 @@ class QueryBuilder {
         return query.toString();
     }
 
-    static String buildUpdateQuery(
+    private static String createUpdateQuery(
             String tableName, Set<String> columnsToUpdate, String idColumn) {
         StringBuilder query = new StringBuilder("UPDATE ");
         query.append(tableName);
@@ -60,11 +86,32 @@ class QueryBuilder {
         return query.toString();
     }
 
-    static String buildFindByIdQuery(String tableName, String idColumn, Object idValue) {
+    static String buildFindByIdQuery(String tableName, String idColumn) {
+        return cached(new StatementKey(StatementType.SELECT, tableName, Collections.emptySet(), idColumn),
+                key -> createFindByIdQuery(tableName, idColumn));
+    }
+
+    private static String createFindByIdQuery(String tableName, String idColumn) {
         StringBuilder query = new StringBuilder("SELECT * FROM ");
         query.append(tableName);
         query.append(" WHERE ");
-        query.append(idColumn).append("=").append(objToString(idValue)).append(";");
+        query.append(idColumn).append("=").append("?").append(";");
+
+        return query.toString();
+    }
+
+    static String buildSelectInQuery(String tableName, String columns, String keyColumn, int paramCount) {
+        StringBuilder query = new StringBuilder("SELECT ");
+        query.append(columns);
+        query.append(" FROM ").append(tableName);
+        query.append(" WHERE ");
+        query.append(keyColumn).append(" IN (");
+        for (int i = 0; i < paramCount; i++) {
+            if (i > 0)
+                query.append(", ");
+            query.append("?");
+        }
+        query.append(");");
 
         return query.toString();
     }
@@ -85,4 +132,58 @@ class QueryBuilder {
 
         return "'" + res + "'";
     }
+
+    private static String cached(StatementKey key, Function<StatementKey, String> builder) {
+        String sql = statementCache.get(key);
+        if (sql == null) {
+            sql = builder.apply(key);
+            statementCache.put(key, sql);
+        }
+        return sql;
+    }
+
+    static int cachedStatementCount() {
+        return statementCache.size();
+    }
+
+    private enum StatementType {
+        SELECT,
+        INSERT,
+        UPDATE,
+        DELETE
+    }
+
+    private static final class StatementKey {
+        private final StatementType type;
+        private final String tableName;
+        private final String[] columns;
+        private final String idColumn;
+        private final int hash;
+
+        StatementKey(StatementType type, String tableName, Collection<String> columns, String idColumn) {
+            this.type = type;
+            this.tableName = tableName;
+            this.columns = columns.toArray(new String[0]);
+            this.idColumn = idColumn;
+            this.hash = Objects.hash(type, tableName, idColumn) * 31 + Arrays.hashCode(this.columns);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof StatementKey))
+                return false;
+            StatementKey other = (StatementKey) o;
+            return type == other.type
+                    && tableName.equals(other.tableName)
+                    && Objects.equals(idColumn, other.idColumn)
+                    && Arrays.equals(columns, other.columns);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
 }
@@ -0,0 +1,263 @@
+package com.mmaricic.worm;
+
+import com.mmaricic.worm.exceptions.DatabaseConfigurationException;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Ids returned by queries, by their SQL text and parameters, shared by all entity managers of a factory, see
+ * {@link EntityManagerFactory#configureQueryCache(QueryCache)}. Only queries marked with
+ * {@link LazyList#cacheable()} or run through {@link EntityManager#cachedQuery(Class, String, Object...)}
+ * are cached, and entities are loaded again by their ids, from the second-level cache when it holds them.
+ * Every write worm makes to a table invalidates the queries which read from it. Writes made outside of worm
+ * need to be reported through {@link #invalidate(String)}.
+ */
+public class QueryCache {
+    /**
+     * Invalidating it drops the results of all queries.
+     */
+    static final String ALL_TABLES = "*";
+
+    private static final Pattern LITERAL_PATTERN = Pattern.compile("'(?:[^'\\\\]|\\\\.)*'|\"(?:[^\"\\\\]|\\\\.)*\"");
+    private static final Pattern TOKEN_PATTERN = Pattern.compile("[`\\w.$]+|\\S");
+    private static final Pattern NAME_PATTERN = Pattern.compile("[`\\w.$]+");
+    private static final Set<String> TABLE_KEYWORDS = new HashSet<>(Arrays.asList("FROM", "JOIN", "INTO", "UPDATE"));
+    private static final Set<String> CLAUSE_KEYWORDS = new HashSet<>(Arrays.asList(
+            "WHERE", "JOIN", "INNER", "LEFT", "RIGHT", "FULL", "CROSS", "OUTER", "NATURAL", "STRAIGHT_JOIN", "ON",
+            "USING", "GROUP", "ORDER", "HAVING", "LIMIT", "OFFSET", "UNION", "EXCEPT", "INTERSECT", "WINDOW", "FOR",
+            "LOCK", "SET", "VALUES", "VALUE", "SELECT", "PARTITION", "USE", "IGNORE", "FORCE"));
+
+    private final Map<Key, Entry> entries;
+    private final Map<String, AtomicLong> tableVersions = new ConcurrentHashMap<>();
+    private final AtomicLong allTablesVersion = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long timeToLiveNanos = 0;
+
+    public QueryCache(int maxSize) {
+        if (maxSize <= 0)
+            throw new DatabaseConfigurationException("Query cache size must be positive.");
+        entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Results older than timeToLive are treated as missing. Without it they live until evicted or invalidated.
+     */
+    public QueryCache timeToLive(Duration timeToLive) {
+        timeToLiveNanos = timeToLive == null ? 0 : timeToLive.toNanos();
+        return this;
+    }
+
+    /**
+     * Drops results of all queries which read from the given table, or of all queries for {@code "*"}.
+     */
+    public void invalidate(String table) {
+        if (ALL_TABLES.equals(table))
+            allTablesVersion.incrementAndGet();
+        else
+            tableVersions.computeIfAbsent(normalize(table), k -> new AtomicLong()).incrementAndGet();
+    }
+
+    public void evictAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Tables are read from FROM, JOIN, INTO and UPDATE clauses, with every table of comma separated lists
+     * and of subqueries. Returns null if some clause doesn't name a table or a subquery, so the tables
+     * can't be fully determined.
+     */
+    static Set<String> tablesOf(String sql) {
+        List<String> tokens = new ArrayList<>();
+        Matcher matcher = TOKEN_PATTERN.matcher(LITERAL_PATTERN.matcher(sql).replaceAll("?"));
+        while (matcher.find()) {
+            tokens.add(matcher.group());
+        }
+        Set<String> tables = new LinkedHashSet<>();
+        return readTables(tokens, 0, tokens.size(), tables) ? tables : null;
+    }
+
+    private static boolean readTables(List<String> tokens, int from, int to, Set<String> tables) {
+        for (int i = from; i < to; i++) {
+            String keyword = tokens.get(i).toUpperCase(Locale.ROOT);
+            if (!TABLE_KEYWORDS.contains(keyword))
+                continue;
+            boolean list = !keyword.equals("JOIN");
+            do {
+                i++;
+                if (i >= to)
+                    return false;
+                if (tokens.get(i).equals("(")) {
+                    int end = closingParenthesis(tokens, i, to);
+                    if (end < 0 || !readTables(tokens, i + 1, end, tables))
+                        return false;
+                    i = end;
+                } else if (NAME_PATTERN.matcher(tokens.get(i)).matches()) {
+                    // a table function, unless it's the column list of an insert
+                    if (!keyword.equals("INTO") && i + 1 < to && tokens.get(i + 1).equals("("))
+                        return false;
+                    tables.add(normalize(tokens.get(i)));
+                } else {
+                    return false;
+                }
+                i = skipAlias(tokens, i + 1, to);
+            } while (list && i < to && tokens.get(i).equals(","));
+            i--;
+        }
+        return true;
+    }
+
+    private static int skipAlias(List<String> tokens, int i, int to) {
+        if (i < to && tokens.get(i).equalsIgnoreCase("AS"))
+            return i + 2;
+        if (i < to && NAME_PATTERN.matcher(tokens.get(i)).matches()
+                && !CLAUSE_KEYWORDS.contains(tokens.get(i).toUpperCase(Locale.ROOT)))
+            return i + 1;
+        return i;
+    }
+
+    private static int closingParenthesis(List<String> tokens, int open, int to) {
+        int depth = 0;
+        for (int i = open; i < to; i++) {
+            if (tokens.get(i).equals("("))
+                depth++;
+            else if (tokens.get(i).equals(")") && --depth == 0)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Versions of the given tables, to be taken before the query runs and passed to put, so results
+     * which were invalidated while the query was running are not stored.
+     */
+    long[] versionsOf(Collection<String> tables) {
+        long[] versions = new long[tables.size() + 1];
+        int i = 0;
+        for (String table : tables) {
+            versions[i++] = version(table);
+        }
+        versions[i] = allTablesVersion.get();
+        return versions;
+    }
+
+    List<Object> get(Class<?> entityClass, String sql, Object[] params) {
+        Key key = new Key(entityClass, sql, params);
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+            if (entry != null && !entry.isValid()) {
+                entries.remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.ids;
+    }
+
+    void put(Class<?> entityClass, String sql, Object[] params, Collection<String> tables, long[] versions,
+             List<Object> ids) {
+        long expiresAt = timeToLiveNanos > 0 ? System.nanoTime() + timeToLiveNanos : 0;
+        Entry entry = new Entry(tables.toArray(new String[0]), versions, ids, expiresAt);
+        if (!entry.isValid())
+            return;
+        synchronized (entries) {
+            entries.put(new Key(entityClass, sql, params), entry);
+        }
+    }
+
+    private long version(String table) {
+        AtomicLong version = tableVersions.get(table);
+        return version == null ? 0 : version.get();
+    }
+
+    /**
+     * Table names are compared in lower case and without quotes or schema.
+     */
+    static String normalize(String table) {
+        String name = table.replace("`", "");
+        int dot = name.lastIndexOf('.');
+        return (dot < 0 ? name : name.substring(dot + 1)).toLowerCase(Locale.ROOT);
+    }
+
+    private class Entry {
+        private final String[] tables;
+        private final long[] versions;
+        private final List<Object> ids;
+        private final long expiresAt;
+
+        Entry(String[] tables, long[] versions, List<Object> ids, long expiresAt) {
+            this.tables = tables;
+            this.versions = versions;
+            this.ids = Collections.unmodifiableList(new ArrayList<>(ids));
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isValid() {
+            if (expiresAt != 0 && System.nanoTime() - expiresAt > 0)
+                return false;
+            for (int i = 0; i < tables.length; i++) {
+                if (version(tables[i]) != versions[i])
+                    return false;
+            }
+            return allTablesVersion.get() == versions[tables.length];
+        }
+    }
+
+    private static final class Key {
+        private final Class<?> entityClass;
+        private final String sql;
+        private final List<Object> params;
+
+        Key(Class<?> entityClass, String sql, Object[] params) {
+            this.entityClass = entityClass;
+            this.sql = sql;
+            this.params = Arrays.asList(params.clone());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return entityClass == other.entityClass && sql.equals(other.sql) && params.equals(other.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(entityClass, sql, params);
+        }
+    }
+}
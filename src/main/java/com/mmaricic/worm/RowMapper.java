@@ -0,0 +1,217 @@
+package com.mmaricic.worm;
+
+import com.mmaricic.worm.EntityMetadata.ColumnMetadata;
+import com.mmaricic.worm.exceptions.EntityIdException;
+import com.mmaricic.worm.exceptions.EntityLoaderException;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Hydrates entities straight from a result set. Which column index goes to which property is resolved
+ * once per entity class and result columns, so reading a row only allocates the entity and its embedded objects.
+ * Foreign key columns of parent associations are the only values kept aside, for association fetching.
+ */
+class RowMapper<T> {
+    private static final int MAX_CACHED_MAPPERS = 64;
+    /**
+     * Mappers of each entity class by the columns they map, the least recently used ones are dropped first.
+     */
+    private static final ClassValue<Map<MapperKey, RowMapper<?>>> mappers = new ClassValue<>() {
+        @Override
+        protected Map<MapperKey, RowMapper<?>> computeValue(Class<?> type) {
+            return Collections.synchronizedMap(new LinkedHashMap<MapperKey, RowMapper<?>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<MapperKey, RowMapper<?>> eldest) {
+                    return size() > MAX_CACHED_MAPPERS;
+                }
+            });
+        }
+    };
+
+    private final Class<T> entityClass;
+    private final EntityMetadata metadata;
+    private final Target root;
+    private final String[] foreignKeyColumns;
+    private final int[] foreignKeyIndexes;
+
+    private RowMapper(Class<T> entityClass, List<String> labels, Collection<String> foreignKeys, String prefix) {
+        this.entityClass = entityClass;
+        this.metadata = EntityMetadata.of(entityClass);
+
+        Map<String, Integer> indexes = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (int i = 1; i <= labels.size(); i++) {
+            String label = labels.get(i - 1);
+            if (label.regionMatches(true, 0, prefix, 0, prefix.length()))
+                indexes.put(label.substring(prefix.length()), i);
+        }
+        root = new Target(null, metadata.getColumns(), indexes);
+
+        List<String> columns = new ArrayList<>();
+        List<Integer> columnIndexes = new ArrayList<>();
+        for (String foreignKey : foreignKeys) {
+            Integer index = indexes.get(foreignKey);
+            if (index != null) {
+                columns.add(foreignKey);
+                columnIndexes.add(index);
+            }
+        }
+        foreignKeyColumns = columns.toArray(new String[0]);
+        foreignKeyIndexes = columnIndexes.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    static <T> RowMapper<T> of(Class<T> entityClass, ResultSetMetaData meta, Collection<String> foreignKeys)
+            throws SQLException {
+        return of(entityClass, meta, foreignKeys, "");
+    }
+
+    /**
+     * Maps only the columns whose label starts with the given prefix, as if the prefix wasn't there.
+     * Used for entities joined into another entity's query. Labels are matched ignoring case,
+     * as some drivers upper-case them.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> RowMapper<T> of(Class<T> entityClass, ResultSetMetaData meta, Collection<String> foreignKeys,
+                               String prefix) throws SQLException {
+        List<String> labels = new ArrayList<>(meta.getColumnCount());
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            labels.add(meta.getColumnLabel(i));
+        }
+        MapperKey key = new MapperKey(labels, foreignKeys, prefix);
+        Map<MapperKey, RowMapper<?>> classMappers = mappers.get(entityClass);
+        RowMapper<T> mapper = (RowMapper<T>) classMappers.get(key);
+        if (mapper == null) {
+            mapper = new RowMapper<>(entityClass, labels, foreignKeys, prefix);
+            classMappers.put(key, mapper);
+        }
+        return mapper;
+    }
+
+    /**
+     * Reads the current row into a new entity. The returned value holds foreign key values of parent
+     * associations by their column name.
+     */
+    AbstractMap.SimpleEntry<T, Map<String, Object>> map(ResultSet resultSet)
+            throws SQLException, EntityLoaderException, EntityIdException {
+        T entity = entityClass.cast(metadata.newInstance());
+        root.populate(entity, resultSet);
+
+        Map<String, Object> foreignKeys = Collections.emptyMap();
+        if (foreignKeyColumns.length > 0) {
+            foreignKeys = new HashMap<>();
+            for (int i = 0; i < foreignKeyColumns.length; i++) {
+                foreignKeys.put(foreignKeyColumns[i], resultSet.getObject(foreignKeyIndexes[i]));
+            }
+        }
+        return new AbstractMap.SimpleEntry<>(entity, foreignKeys);
+    }
+
+    private static class Target {
+        private final ColumnMetadata embeddedColumn;
+        private final List<Binding> bindings = new ArrayList<>();
+        private final List<Target> embedded = new ArrayList<>();
+
+        Target(ColumnMetadata embeddedColumn, List<ColumnMetadata> columns, Map<String, Integer> indexes) {
+            this.embeddedColumn = embeddedColumn;
+            for (ColumnMetadata column : columns) {
+                if (column.isEmbedded()) {
+                    embedded.add(new Target(column, column.getEmbeddedColumns(), indexes));
+                    continue;
+                }
+                Integer index = indexes.get(column.getName());
+                if (index != null)
+                    bindings.add(new Binding(column, index, readerFor(column.getType())));
+            }
+        }
+
+        void populate(Object target, ResultSet resultSet) throws SQLException, EntityLoaderException {
+            for (Binding binding : bindings) {
+                Object value = binding.reader.read(resultSet, binding.index);
+                if (value != null)
+                    binding.column.set(target, value);
+            }
+            for (Target child : embedded) {
+                Object value = child.embeddedColumn.newEmbeddedInstance();
+                child.populate(value, resultSet);
+                child.embeddedColumn.set(target, value);
+            }
+        }
+    }
+
+    private static class Binding {
+        private final ColumnMetadata column;
+        private final int index;
+        private final ValueReader reader;
+
+        Binding(ColumnMetadata column, int index, ValueReader reader) {
+            this.column = column;
+            this.index = index;
+            this.reader = reader;
+        }
+    }
+
+    private interface ValueReader {
+        Object read(ResultSet resultSet, int index) throws SQLException;
+    }
+
+    private static ValueReader readerFor(Class<?> type) {
+        if (type == String.class)
+            return ResultSet::getString;
+        if (type == int.class || type == Integer.class)
+            return (rs, i) -> orNull(rs, rs.getInt(i));
+        if (type == long.class || type == Long.class)
+            return (rs, i) -> orNull(rs, rs.getLong(i));
+        if (type == double.class || type == Double.class)
+            return (rs, i) -> orNull(rs, rs.getDouble(i));
+        if (type == float.class || type == Float.class)
+            return (rs, i) -> orNull(rs, rs.getFloat(i));
+        if (type == short.class || type == Short.class)
+            return (rs, i) -> orNull(rs, rs.getShort(i));
+        if (type == byte.class || type == Byte.class)
+            return (rs, i) -> orNull(rs, rs.getByte(i));
+        if (type == boolean.class || type == Boolean.class)
+            return (rs, i) -> orNull(rs, rs.getBoolean(i));
+        if (type == char.class || type == Character.class)
+            return (rs, i) -> {
+                String value = rs.getString(i);
+                return value == null || value.isEmpty() ? null : value.charAt(0);
+            };
+        if (type.getName().startsWith("java.time."))
+            return (rs, i) -> rs.getObject(i, type);
+        return ResultSet::getObject;
+    }
+
+    private static Object orNull(ResultSet resultSet, Object value) throws SQLException {
+        return resultSet.wasNull() ? null : value;
+    }
+
+    private static final class MapperKey {
+        private final List<String> labels;
+        private final Set<String> foreignKeys;
+        private final String prefix;
+
+        MapperKey(List<String> labels, Collection<String> foreignKeys, String prefix) {
+            this.labels = labels;
+            this.foreignKeys = new HashSet<>(foreignKeys);
+            this.prefix = prefix;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof MapperKey))
+                return false;
+            MapperKey other = (MapperKey) o;
+            return labels.equals(other.labels) && foreignKeys.equals(other.foreignKeys)
+                    && prefix.equals(other.prefix);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(labels, foreignKeys, prefix);
+        }
+    }
+}
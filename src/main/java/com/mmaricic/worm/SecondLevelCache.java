@@ -0,0 +1,356 @@
+package com.mmaricic.worm;
+
+import com.mmaricic.worm.exceptions.DatabaseConfigurationException;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Entity state shared by all entity managers of a factory, see
+ * {@link EntityManagerFactory#configureSecondLevelCache(SecondLevelCache)}. Only classes annotated with
+ * {@link javax.persistence.Cacheable} or registered through {@link #cache(Class[])} are cached.
+ * Entries hold column values rather than entity instances, so every entity manager gets its own copy.
+ * Saving, updating or deleting an entity invalidates its entry.
+ */
+public class SecondLevelCache {
+    public enum EvictionPolicy {
+        LRU,
+        LFU
+    }
+
+    private static final int STRIPES = 64;
+
+    private final Store store;
+    private final Set<Class<?>> cachedClasses = ConcurrentHashMap.newKeySet();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private long timeToLiveNanos = 0;
+    private final AtomicLong clock = new AtomicLong();
+    private final Map<Class<?>, AtomicLongArray> invalidations = new ConcurrentHashMap<>();
+    private volatile long clearedAt = 0;
+
+    public SecondLevelCache(EvictionPolicy evictionPolicy, int maxSize) {
+        if (maxSize <= 0)
+            throw new DatabaseConfigurationException("Second-level cache size must be positive.");
+        store = evictionPolicy == EvictionPolicy.LFU ? new LfuStore(maxSize) : new LruStore(maxSize);
+    }
+
+    /**
+     * Entries older than timeToLive are treated as missing. Without it entries live until evicted or invalidated.
+     */
+    public SecondLevelCache timeToLive(Duration timeToLive) {
+        timeToLiveNanos = timeToLive == null ? 0 : timeToLive.toNanos();
+        return this;
+    }
+
+    public SecondLevelCache cache(Class<?>... entityClasses) {
+        for (Class<?> entityClass : entityClasses) {
+            cachedClasses.add(EntityMetadata.of(entityClass).getRootClass());
+        }
+        return this;
+    }
+
+    public void evict(Class<?> entityClass) {
+        Class<?> rootClass = EntityMetadata.of(entityClass).getRootClass();
+        invalidated(rootClass, STRIPES);
+        synchronized (store) {
+            store.removeIf(key -> key.rootClass == rootClass);
+        }
+    }
+
+    public void evictAll() {
+        clearedAt = clock.incrementAndGet();
+        synchronized (store) {
+            store.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (store) {
+            return store.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    boolean isCacheable(Class<?> entityClass) {
+        EntityMetadata metadata = EntityMetadata.of(entityClass);
+        return metadata.isCacheable() || cachedClasses.contains(metadata.getRootClass());
+    }
+
+    CachedEntity get(Class<?> entityClass, Object id) {
+        Key key = new Key(entityClass, id);
+        CachedEntity cached;
+        synchronized (store) {
+            cached = store.get(key);
+            if (cached != null && cached.isExpired()) {
+                store.remove(key);
+                cached = null;
+            }
+        }
+        if (cached == null || !entityClass.isAssignableFrom(cached.entityClass)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return cached;
+    }
+
+    /**
+     * Current time of the cache's invalidation clock, to be taken before the entity is read from the database
+     * and passed to put.
+     */
+    long stamp() {
+        return clock.get();
+    }
+
+    /**
+     * Caches the entity unless it was invalidated after readStamp, so state read before a write was
+     * committed can't replace the invalidation of that write.
+     */
+    void put(Object entity, Object id, Map<String, Object> columns, Map<String, Object> foreignKeys,
+             long readStamp) {
+        long expiresAt = timeToLiveNanos > 0 ? System.nanoTime() + timeToLiveNanos : 0;
+        CachedEntity cached = new CachedEntity(entity.getClass(), columns, foreignKeys, expiresAt);
+        Key key = new Key(entity.getClass(), id);
+        synchronized (store) {
+            if (!isInvalidatedSince(key, readStamp))
+                store.put(key, cached);
+        }
+    }
+
+    void remove(Class<?> entityClass, Object id) {
+        Key key = new Key(entityClass, id);
+        invalidated(key.rootClass, stripe(key));
+        synchronized (store) {
+            store.remove(key);
+        }
+    }
+
+    /**
+     * Invalidation times are kept per stripe of ids, with the last slot for the whole class,
+     * so they take constant space.
+     */
+    private void invalidated(Class<?> rootClass, int slot) {
+        long now = clock.incrementAndGet();
+        invalidations.computeIfAbsent(rootClass, k -> new AtomicLongArray(STRIPES + 1))
+                .accumulateAndGet(slot, now, Math::max);
+    }
+
+    private boolean isInvalidatedSince(Key key, long stamp) {
+        if (clearedAt > stamp)
+            return true;
+        AtomicLongArray times = invalidations.get(key.rootClass);
+        return times != null && (times.get(stripe(key)) > stamp || times.get(STRIPES) > stamp);
+    }
+
+    private static int stripe(Key key) {
+        return (key.id.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    static class CachedEntity {
+        final Class<?> entityClass;
+        final Map<String, Object> columns;
+        final Map<String, Object> foreignKeys;
+        private final long expiresAt;
+
+        CachedEntity(Class<?> entityClass, Map<String, Object> columns, Map<String, Object> foreignKeys,
+                     long expiresAt) {
+            this.entityClass = entityClass;
+            this.columns = Collections.unmodifiableMap(columns);
+            this.foreignKeys = Collections.unmodifiableMap(foreignKeys);
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired() {
+            return expiresAt != 0 && System.nanoTime() - expiresAt > 0;
+        }
+    }
+
+    private static final class Key {
+        private final Class<?> rootClass;
+        private final Object id;
+
+        Key(Class<?> entityClass, Object id) {
+            this.rootClass = EntityMetadata.of(entityClass).getRootClass();
+            this.id = AssociationHandler.keyOf(id);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return rootClass == other.rootClass && id.equals(other.id);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(rootClass, id);
+        }
+    }
+
+    /**
+     * Not thread-safe, SecondLevelCache synchronizes on the store.
+     */
+    private interface Store {
+        CachedEntity get(Key key);
+
+        void put(Key key, CachedEntity value);
+
+        void remove(Key key);
+
+        void removeIf(java.util.function.Predicate<Key> filter);
+
+        void clear();
+
+        int size();
+    }
+
+    private static class LruStore implements Store {
+        private final Map<Key, CachedEntity> entries;
+
+        LruStore(int maxSize) {
+            entries = new LinkedHashMap<Key, CachedEntity>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Key, CachedEntity> eldest) {
+                    return size() > maxSize;
+                }
+            };
+        }
+
+        @Override
+        public CachedEntity get(Key key) {
+            return entries.get(key);
+        }
+
+        @Override
+        public void put(Key key, CachedEntity value) {
+            entries.put(key, value);
+        }
+
+        @Override
+        public void remove(Key key) {
+            entries.remove(key);
+        }
+
+        @Override
+        public void removeIf(java.util.function.Predicate<Key> filter) {
+            entries.keySet().removeIf(filter);
+        }
+
+        @Override
+        public void clear() {
+            entries.clear();
+        }
+
+        @Override
+        public int size() {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Evicts the least frequently used entry, the least recently used one among equally frequent entries.
+     * Keys are kept in insertion ordered buckets per use count, so every operation is constant time.
+     */
+    private static class LfuStore implements Store {
+        private final int maxSize;
+        private final Map<Key, CachedEntity> entries = new HashMap<>();
+        private final Map<Key, Integer> counts = new HashMap<>();
+        private final Map<Integer, LinkedHashSet<Key>> buckets = new HashMap<>();
+        private int minCount = 0;
+
+        LfuStore(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public CachedEntity get(Key key) {
+            CachedEntity value = entries.get(key);
+            if (value != null)
+                touch(key);
+            return value;
+        }
+
+        @Override
+        public void put(Key key, CachedEntity value) {
+            if (entries.containsKey(key)) {
+                entries.put(key, value);
+                return;
+            }
+            if (entries.size() >= maxSize)
+                evict();
+            entries.put(key, value);
+            counts.put(key, 1);
+            buckets.computeIfAbsent(1, k -> new LinkedHashSet<>()).add(key);
+            minCount = 1;
+        }
+
+        @Override
+        public void remove(Key key) {
+            if (entries.remove(key) == null)
+                return;
+            int count = counts.remove(key);
+            LinkedHashSet<Key> bucket = buckets.get(count);
+            bucket.remove(key);
+            if (bucket.isEmpty())
+                buckets.remove(count);
+        }
+
+        @Override
+        public void removeIf(java.util.function.Predicate<Key> filter) {
+            for (Key key : new ArrayList<>(entries.keySet())) {
+                if (filter.test(key))
+                    remove(key);
+            }
+        }
+
+        @Override
+        public void clear() {
+            entries.clear();
+            counts.clear();
+            buckets.clear();
+            minCount = 0;
+        }
+
+        @Override
+        public int size() {
+            return entries.size();
+        }
+
+        private void touch(Key key) {
+            int count = counts.get(key);
+            LinkedHashSet<Key> bucket = buckets.get(count);
+            bucket.remove(key);
+            if (bucket.isEmpty()) {
+                buckets.remove(count);
+                if (minCount == count)
+                    minCount = count + 1;
+            }
+            counts.put(key, count + 1);
+            buckets.computeIfAbsent(count + 1, k -> new LinkedHashSet<>()).add(key);
+        }
+
+        private void evict() {
+            LinkedHashSet<Key> bucket = buckets.get(minCount);
+            if (bucket == null) {
+                // minCount is stale after removals, fall back to a scan of the bucket counts
+                minCount = Collections.min(buckets.keySet());
+                bucket = buckets.get(minCount);
+            }
+            remove(bucket.iterator().next());
+        }
+    }
+}
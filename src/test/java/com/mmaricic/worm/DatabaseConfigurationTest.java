@@ -0,0 +1,55 @@
+package com.mmaricic.worm;
+
+import com.mmaricic.worm.exceptions.DatabaseConfigurationException;
+import org.apache.commons.dbcp2.BasicDataSource;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DatabaseConfigurationTest {
+    @Test
+    void settingsAreAppliedToThePool() throws Exception {
+        BasicDataSource dataSource = new DatabaseConfiguration("driver", "url", "user", "pass")
+                .maxTotal(32)
+                .minIdle(2)
+                .maxWait(Duration.ofSeconds(3))
+                .validationQuery("SELECT 1")
+                .testOnBorrow(true)
+                .eviction(Duration.ofMinutes(1), Duration.ofMinutes(5))
+                .statementCacheSize(16)
+                .createDataSource();
+
+        assertEquals("url", dataSource.getUrl());
+        assertEquals(32, dataSource.getMaxTotal());
+        assertEquals(2, dataSource.getMinIdle());
+        assertEquals(3000, dataSource.getMaxWaitMillis());
+        assertEquals("SELECT 1", dataSource.getValidationQuery());
+        assertTrue(dataSource.getTestOnBorrow());
+        assertEquals(60000, dataSource.getTimeBetweenEvictionRunsMillis());
+        assertEquals(300000, dataSource.getMinEvictableIdleTimeMillis());
+        assertTrue(dataSource.isPoolPreparedStatements());
+        assertEquals(16, dataSource.getMaxOpenPreparedStatements());
+        dataSource.close();
+    }
+
+    @Test
+    void statementCachingCanBeDisabled() throws Exception {
+        BasicDataSource dataSource = new DatabaseConfiguration("driver", "url", "user", "pass")
+                .statementCacheSize(0)
+                .createDataSource();
+
+        assertFalse(dataSource.isPoolPreparedStatements());
+        dataSource.close();
+    }
+
+    @Test
+    void invalidSettings() {
+        DatabaseConfiguration configuration = new DatabaseConfiguration("driver", "url", "user", "pass");
+
+        assertThrows(DatabaseConfigurationException.class, () -> configuration.maxTotal(0));
+        assertThrows(DatabaseConfigurationException.class, () -> configuration.minIdle(-1));
+        assertThrows(DatabaseConfigurationException.class, () -> configuration.statementCacheSize(-1));
+    }
+}
@@ -2,7 +2,10 @@ package com.mmaricic.worm;
 
 import com.google.common.collect.MapDifference;
 import com.google.common.collect.Maps;
+import com.mmaricic.worm.exceptions.EntityException;
 import com.mmaricic.worm.exceptions.EntityIdException;
+import com.mmaricic.worm.exceptions.QueryException;
+import com.mmaricic.worm.exceptions.TransactionException;
 import com.mmaricic.worm.helpers.Company;
 import com.mmaricic.worm.helpers.User;
 import org.apache.commons.dbcp2.BasicDataSource;
@@ -11,14 +14,22 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 
+import javax.persistence.*;
+
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -136,6 +147,416 @@ class EntityManagerTest {
         assertEquals("john", updatedUser.getName().getFirstname());
     }
 
+    @Test
+    void saveAll() {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+        User first = new User();
+        first.setEmail("john@mail.com");
+        first.setAddress("dummy");
+        User second = new User();
+        second.setEmail("jane@mail.com");
+        User third = new User();
+        third.setEmail("marija@mail.com");
+        third.setName(new User.Name("marija", "maricic"));
+
+        assertTrue(em.saveAll(Arrays.asList(first, second, third)));
+
+        assertNotNull(first.getId());
+        assertNotNull(second.getId());
+        assertNotNull(third.getId());
+        assertEquals("dummy", em.find(User.class, first.getId()).getAddress());
+        assertEquals("jane@mail.com", em.find(User.class, second.getId()).getEmail());
+        assertEquals("marija", em.find(User.class, third.getId()).getName().getFirstname());
+    }
+
+    @Test
+    void failedSaveAllIsRolledBack() {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+        Company existing = new Company();
+        existing.setId(1);
+        existing.setName("Existing");
+        em.save(existing);
+
+        Company first = new Company();
+        first.setId(2);
+        first.setName("First");
+        Company second = new Company();
+        second.setId(3);
+        second.setName("Second");
+        Company duplicate = new Company();
+        duplicate.setId(1);
+        duplicate.setName("Duplicate");
+        assertThrows(QueryException.class, () -> em.saveAll(Arrays.asList(first, second, duplicate)));
+
+        List<Company> companies = em.query("SELECT * FROM companies", Company.class);
+        assertEquals(1, companies.size());
+        assertEquals("Existing", companies.get(0).getName());
+    }
+
+    @Test
+    void updateAllAndDeleteAll() {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+        User first = new User();
+        first.setEmail("john@mail.com");
+        User second = new User();
+        second.setEmail("jane@mail.com");
+        em.saveAll(Arrays.asList(first, second));
+
+        first.setAddress("new");
+        second.setAddress("newer");
+        assertTrue(em.updateAll(Arrays.asList(first, second)));
+        assertEquals("new", em.find(User.class, first.getId()).getAddress());
+        assertEquals("newer", em.find(User.class, second.getId()).getAddress());
+
+        Long firstId = first.getId();
+        Long secondId = second.getId();
+        assertTrue(em.deleteAll(Arrays.asList(first, second)));
+        assertNull(first.getId());
+        assertNull(em.find(User.class, firstId));
+        assertNull(em.find(User.class, secondId));
+    }
+
+    @Test
+    void rollback() {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+        User user = new User();
+        user.setEmail("john@mail.com");
+
+        em.begin();
+        assertTrue(em.isTransactionActive());
+        em.save(user);
+        Long id = user.getId();
+        assertNotNull(em.find(User.class, id));
+        em.rollback();
+
+        assertFalse(em.isTransactionActive());
+        assertNull(user.getId());
+        assertNull(em.find(User.class, id));
+        assertThrows(TransactionException.class, em::commit);
+    }
+
+    @Test
+    void rollbackDiscardsSnapshots() {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+        Company company = new Company();
+        company.setId(1);
+        company.setName("Company");
+        em.save(company);
+
+        Company loaded = em.find(Company.class, 1);
+        em.begin();
+        loaded.setName("T");
+        assertTrue(em.update(loaded));
+        em.rollback();
+        assertEquals("Company", em.find(Company.class, 1).getName());
+
+        assertTrue(em.update(loaded));
+        assertEquals("T", em.find(Company.class, 1).getName());
+    }
+
+    @Test
+    void inTransaction() {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+        User first = new User();
+        first.setEmail("john@mail.com");
+        User second = new User();
+        second.setEmail("jane@mail.com");
+
+        em.inTransaction(e -> e.save(first) && e.save(second));
+        assertNotNull(em.find(User.class, first.getId()));
+        assertNotNull(em.find(User.class, second.getId()));
+
+        User failing = new User();
+        failing.setEmail("marija@mail.com");
+        Long[] failingId = new Long[1];
+        assertThrows(EntityIdException.class, () -> em.inTransaction(e -> {
+            e.save(failing);
+            failingId[0] = failing.getId();
+            User withId = new User();
+            withId.setId(1L);
+            return e.save(withId);
+        }));
+        assertFalse(em.isTransactionActive());
+        assertNull(failing.getId());
+        assertNull(em.find(User.class, failingId[0]));
+    }
+
+    @Test
+    void identityMap() {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+        User user = new User();
+        user.setEmail("john@mail.com");
+        em.save(user);
+
+        assertNotSame(em.find(User.class, user.getId()), em.find(User.class, user.getId()));
+
+        em.inTransaction(e -> {
+            User found = e.find(User.class, user.getId());
+            assertTrue(e.contains(found));
+            assertSame(found, e.find(User.class, user.getId()));
+            assertSame(found, e.query("SELECT * FROM user", User.class).get(0));
+
+            e.detach(found);
+            assertFalse(e.contains(found));
+            User reloaded = e.find(User.class, user.getId());
+            assertNotSame(found, reloaded);
+
+            e.clear();
+            assertFalse(e.contains(reloaded));
+            return null;
+        });
+        assertFalse(em.contains(user));
+        assertThrows(IllegalArgumentException.class, () -> em.setIdentityMapSize(0));
+    }
+
+    @Test
+    void entitiesAreNotSharedOutsideOfTransactions() {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+        User user = new User();
+        user.setEmail("first@mail.com");
+        em.save(user);
+
+        User found = em.find(User.class, user.getId());
+        assertFalse(em.contains(found));
+        assertNotSame(found, em.query("SELECT * FROM user", User.class).get(0));
+
+        EntityManager other = EntityManagerFactory.getEntityManager();
+        User changed = other.find(User.class, user.getId());
+        changed.setEmail("second@mail.com");
+        other.update(changed);
+        assertEquals("second@mail.com", em.find(User.class, user.getId()).getEmail());
+
+        User managed = em.inTransaction(e -> e.find(User.class, user.getId()));
+        assertFalse(em.contains(managed));
+        assertNotSame(managed, em.find(User.class, user.getId()));
+    }
+
+    @Test
+    void secondLevelCache() {
+        SecondLevelCache cache = new SecondLevelCache(SecondLevelCache.EvictionPolicy.LRU, 100).cache(Company.class);
+        EntityManagerFactory.configureSecondLevelCache(cache);
+        try {
+            EntityManager em = EntityManagerFactory.getEntityManager();
+            Company company = new Company();
+            company.setId(2);
+            company.setName("Company");
+            em.save(company);
+
+            Company loaded = em.find(Company.class, 2);
+            assertEquals(1, cache.size());
+
+            Company cached = EntityManagerFactory.getEntityManager().find(Company.class, 2);
+            assertEquals(1, cache.getHitCount());
+            assertNotSame(loaded, cached);
+            assertEquals("Company", cached.getName());
+
+            cached.setName("Renamed");
+            em.update(cached);
+            assertEquals(0, cache.size());
+            assertEquals("Renamed", EntityManagerFactory.getEntityManager().find(Company.class, 2).getName());
+            assertEquals(1, cache.size());
+        } finally {
+            EntityManagerFactory.configureSecondLevelCache(null);
+        }
+    }
+
+    @Test
+    void secondLevelCacheIgnoresRowsReadBeforeUpdate() {
+        SecondLevelCache cache = new SecondLevelCache(SecondLevelCache.EvictionPolicy.LRU, 100).cache(Company.class);
+        EntityManagerFactory.configureSecondLevelCache(cache);
+        try {
+            EntityManager em = EntityManagerFactory.getEntityManager();
+            Company company = new Company();
+            company.setId(2);
+            company.setName("Company");
+            em.save(company);
+
+            EntityManager reader = EntityManagerFactory.getEntityManager();
+            try (Stream<Company> companies = reader.stream(Company.class, "SELECT * FROM companies")) {
+                Company renamed = EntityManagerFactory.getEntityManager().find(Company.class, 2);
+                renamed.setName("Renamed");
+                EntityManagerFactory.getEntityManager().update(renamed);
+
+                assertEquals("Company", companies.findFirst().get().getName());
+            }
+            assertEquals("Renamed", EntityManagerFactory.getEntityManager().find(Company.class, 2).getName());
+        } finally {
+            EntityManagerFactory.configureSecondLevelCache(null);
+        }
+    }
+
+    @Test
+    void queryCache() {
+        QueryCache cache = new QueryCache(100);
+        EntityManagerFactory.configureQueryCache(cache);
+        try {
+            EntityManager em = EntityManagerFactory.getEntityManager();
+            for (int id = 1; id <= 3; id++) {
+                Company company = new Company();
+                company.setId(id);
+                company.setName("Company " + id);
+                em.save(company);
+            }
+
+            List<Company> first = em.find(Company.class).where("id>1").orderBy("id desc").cacheable();
+            assertEquals(2, first.size());
+            List<Company> second = em.find(Company.class).where("id>1").orderBy("id desc").cacheable();
+            assertEquals(Arrays.asList(3, 2), second.stream().map(Company::getId).collect(Collectors.toList()));
+            assertEquals(1, cache.getHitCount());
+
+            Company company = new Company();
+            company.setId(4);
+            company.setName("Company 4");
+            em.save(company);
+            List<Company> third = em.cachedQuery(Company.class, "SELECT * FROM companies WHERE id>? ORDER BY id desc;", 1);
+            assertEquals(Arrays.asList(4, 3, 2), third.stream().map(Company::getId).collect(Collectors.toList()));
+            assertEquals(1, cache.getHitCount());
+
+            String sql = "SELECT * FROM companies WHERE id>? ORDER BY id desc;";
+            EntityManager reader = EntityManagerFactory.getEntityManager();
+            em.begin();
+            company = new Company();
+            company.setId(5);
+            company.setName("Company 5");
+            em.save(company);
+            assertEquals(3, reader.cachedQuery(Company.class, sql, 1).size());
+            em.commit();
+            assertEquals(4, reader.cachedQuery(Company.class, sql, 1).size());
+
+            String joined = "SELECT companies.* FROM companies, user WHERE user.email=companies.name;";
+            assertEquals(0, em.cachedQuery(Company.class, joined).size());
+            User user = new User();
+            user.setEmail("Company 1");
+            em.save(user);
+            assertEquals(1, em.cachedQuery(Company.class, joined).size());
+        } finally {
+            EntityManagerFactory.configureQueryCache(null);
+        }
+    }
+
+    @Test
+    void updateWritesOnlyChangedColumns() {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+        Company company = new Company();
+        company.setId(2);
+        company.setName("Company");
+        Company.Address address = new Company.Address();
+        address.setCity("Belgrade");
+        company.setAddress(address);
+        em.save(company);
+
+        Company loaded = em.find(Company.class, 2);
+        em.executeUpdate("UPDATE companies SET name=?, city=? WHERE id=?;", "Changed elsewhere", "Nis", 2);
+        assertTrue(em.update(loaded));
+        assertEquals("Changed elsewhere", em.find(Company.class, 2).getName());
+
+        loaded.getAddress().setCity("Novi Sad");
+        assertTrue(em.update(loaded));
+        Company updated = em.find(Company.class, 2);
+        assertEquals("Changed elsewhere", updated.getName());
+        assertEquals("Novi Sad", updated.getAddress().getCity());
+
+        updated.getAddress().setCity(null);
+        assertTrue(em.update(updated));
+        assertNull(em.find(Company.class, 2).getAddress().getCity());
+    }
+
+    @Test
+    void async() throws Exception {
+        AsyncEntityManager async = EntityManagerFactory.getAsyncEntityManager();
+        List<Company> companies = Stream.of(2, 3, 4).map(id -> {
+            Company company = new Company();
+            company.setId(id);
+            company.setName("Company " + id);
+            return company;
+        }).collect(Collectors.toList());
+
+        CompletableFuture.allOf(companies.stream().map(async::saveAsync).toArray(CompletableFuture[]::new)).get();
+
+        List<CompletableFuture<Company>> loads = Stream.of(2, 3, 4)
+                .map(id -> async.findAsync(Company.class, id))
+                .collect(Collectors.toList());
+        for (int i = 0; i < loads.size(); i++) {
+            assertEquals("Company " + (i + 2), loads.get(i).get().getName());
+        }
+
+        Company missing = new Company();
+        missing.setId(2);
+        ExecutionException error = assertThrows(ExecutionException.class, () -> async.saveAsync(missing).get());
+        assertTrue(error.getCause() instanceof QueryException);
+    }
+
+    @Test
+    void currentEntityManager() throws Exception {
+        EntityManager current = EntityManagerFactory.getCurrentEntityManager();
+        assertSame(current, EntityManagerFactory.getCurrentEntityManager());
+
+        EntityManager[] other = new EntityManager[1];
+        Thread thread = new Thread(() -> other[0] = EntityManagerFactory.getCurrentEntityManager());
+        thread.start();
+        thread.join();
+        assertNotNull(other[0]);
+        assertNotSame(current, other[0]);
+
+        current.begin();
+        EntityManagerFactory.releaseCurrentEntityManager();
+        assertFalse(current.isTransactionActive());
+        assertNotSame(current, EntityManagerFactory.getCurrentEntityManager());
+        EntityManagerFactory.releaseCurrentEntityManager();
+    }
+
+    @Test
+    void stream() {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+        for (String email : Arrays.asList("a@mail.com", "b@mail.com", "c@mail.com")) {
+            User user = new User();
+            user.setEmail(email);
+            em.save(user);
+        }
+
+        try (Stream<User> users = em.stream(User.class, "SELECT * FROM user WHERE email<>? ORDER BY email",
+                "b@mail.com")) {
+            List<String> emails = users.map(User::getEmail).collect(Collectors.toList());
+            assertEquals(Arrays.asList("a@mail.com", "c@mail.com"), emails);
+        }
+
+        try (Stream<User> users = em.stream(User.class, "SELECT * FROM user")) {
+            assertTrue(users.findFirst().isPresent());
+        }
+    }
+
+    @Test
+    void streamReadsRowsFromTheServerAsTheyAreConsumed() {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+        for (int id = 1; id <= 3; id++) {
+            Company company = new Company();
+            company.setId(id);
+            company.setName("Company " + id);
+            em.save(company);
+        }
+
+        em.setStreamFetchSize(2);
+        em.begin();
+        try (Stream<Company> companies = em.stream(Company.class, "SELECT * FROM companies")) {
+            assertTrue(companies.iterator().hasNext());
+            QueryException error = assertThrows(QueryException.class,
+                    () -> em.query("SELECT * FROM companies", Company.class));
+            assertTrue(error.getMessage().contains("Streaming result set"));
+        }
+        assertEquals(3, em.query("SELECT * FROM companies", Company.class).size());
+        em.rollback();
+    }
+
+    @Test
+    void queryErrorKeepsDatabaseError() {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+        QueryException error = assertThrows(QueryException.class,
+                () -> em.query("SELECT * FROM missing_table", Company.class));
+
+        assertTrue(error.getCause() instanceof SQLException);
+        assertTrue(error.getMessage().contains("doesn't exist"));
+    }
+
     @Test
     void find() throws Exception {
         EntityManager em = EntityManagerFactory.getEntityManager();
@@ -214,6 +635,123 @@ class EntityManagerTest {
                 .where("founding_date<'2020-01-01'")
                 .count();
         assertEquals(4, count);
+
+        LazyList<Company> limited = em.find(Company.class)
+                .where("country='Serbia'")
+                .orderBy("id asc")
+                .offset(3)
+                .limit(2);
+        assertEquals(1, limited.count());
+        assertTrue(limited.exists());
+        assertFalse(limited.isInitialized());
+        assertFalse(em.find(Company.class).where("country='Spain'").exists());
+
+        limited.clear();
+        assertEquals(0, limited.count());
+        assertFalse(limited.exists());
+    }
+
+    @Test
+    void keysetPagination() throws Exception {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+        String[] names = {"B", "A", "B", "C", "A"};
+        for (int i = 0; i < names.length; i++) {
+            Company company = new Company();
+            company.setId(i + 1);
+            company.setName(names[i]);
+            em.save(company);
+        }
+
+        List<Company> page = em.find(Company.class).orderBy("name").limit(2);
+        assertEquals(Arrays.asList(2, 5), page.stream().map(Company::getId).collect(Collectors.toList()));
+        page = em.find(Company.class).orderBy("name").after(page.get(1)).limit(2);
+        assertEquals(Arrays.asList(1, 3), page.stream().map(Company::getId).collect(Collectors.toList()));
+        page = em.find(Company.class).orderBy("name").after(page.get(1)).limit(2);
+        assertEquals(Collections.singletonList(4), page.stream().map(Company::getId).collect(Collectors.toList()));
+
+        // ties are ordered by id in the order's direction, so pages neither repeat nor skip rows
+        page = em.find(Company.class).orderBy("name desc").limit(2);
+        assertEquals(Arrays.asList(4, 3), page.stream().map(Company::getId).collect(Collectors.toList()));
+        page = em.find(Company.class).orderBy("name desc").after(page.get(1)).limit(2);
+        assertEquals(Arrays.asList(1, 5), page.stream().map(Company::getId).collect(Collectors.toList()));
+
+        page = em.find(Company.class).orderBy("id desc").pageAfter("id", 3).limit(5);
+        assertEquals(Arrays.asList(2, 1), page.stream().map(Company::getId).collect(Collectors.toList()));
+        assertEquals(3, em.find(Company.class).where("name<>'C'").pageAfter("id", 1).count());
+
+        assertThrows(QueryException.class,
+                () -> em.find(Company.class).orderBy("name").pageAfter("id", 1).size());
+        assertThrows(QueryException.class,
+                () -> em.find(Company.class).orderBy("name desc").orderBy("id").after(new Company()).size());
+    }
+
+    @Test
+    void selectColumns() throws Exception {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+        Company company = new Company();
+        company.setId(1);
+        company.setName("Company");
+        company.setFoundingDate(formatter.parse("2016-07-10"));
+        Company.Address address = new Company.Address();
+        address.setCity("Belgrade");
+        address.setHouseNumber(12);
+        company.setAddress(address);
+        em.save(company);
+
+        List<Company> companies = em.find(Company.class).select("name", "city").where("id=1");
+        Company partial = companies.get(0);
+        assertEquals(1, partial.getId());
+        assertEquals("Company", partial.getName());
+        assertEquals("Belgrade", partial.getAddress().getCity());
+        assertNull(partial.getFoundingDate());
+        assertEquals(0, partial.getAddress().getHouseNumber());
+
+        partial.setName("Renamed");
+        assertThrows(EntityException.class, () -> em.update(partial));
+        assertThrows(EntityException.class, () -> em.updateAll(companies));
+        Company loaded = em.find(Company.class, 1);
+        assertEquals("Company", loaded.getName());
+        assertEquals(company.getFoundingDate(), loaded.getFoundingDate());
+        assertEquals(12, loaded.getAddress().getHouseNumber());
+
+        assertThrows(QueryException.class, () -> em.find(Company.class).select("missing"));
+    }
+
+    @Test
+    void lazyColumns() throws Exception {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+        for (int i = 1; i <= 3; i++) {
+            CompanyDocument document = new CompanyDocument();
+            document.id = i;
+            document.name = "Company " + i;
+            document.city = "City " + i;
+            document.country = "Country " + i;
+            em.save(document);
+        }
+
+        em = EntityManagerFactory.getEntityManager();
+        CompanyDocument document = em.find(CompanyDocument.class, 1);
+        assertEquals("Company 1", document.name);
+        assertNull(document.city);
+        assertNull(document.country);
+        em.load(document, "city");
+        assertEquals("City 1", document.city);
+
+        List<CompanyDocument> documents = em.find(CompanyDocument.class).where("id>1").orderBy("id");
+        assertNull(documents.get(0).country);
+        em.load(documents, "country");
+        assertEquals("Country 2", documents.get(0).country);
+        assertEquals("Country 3", documents.get(1).country);
+
+        document.name = "Renamed";
+        assertTrue(em.update(document));
+        List<Map<String, Object>> row = em.preparedQuery("SELECT name, city, country FROM companies WHERE id=1;");
+        assertEquals("Renamed", row.get(0).get("name"));
+        assertEquals("City 1", row.get(0).get("city"));
+        assertEquals("Country 1", row.get(0).get("country"));
+
+        EntityManager manager = em;
+        assertThrows(QueryException.class, () -> manager.load(documents, "missing"));
     }
 
     @Test
@@ -384,4 +922,16 @@ class EntityManagerTest {
         assertEquals(expected.getAddress().getStreetName(), expected.getAddress().getStreetName());
 
     }
-}
\ No newline at end of file
+
+    @Entity
+    @Table(name = "companies")
+    public static class CompanyDocument {
+        @Id
+        private int id;
+        private String name;
+        @Basic(fetch = FetchType.LAZY)
+        private String city;
+        @Lob
+        private String country;
+    }
+}
@@ -5,6 +5,7 @@ import com.google.common.collect.Maps;
 import com.mmaricic.worm.exceptions.AnnotationException;
 import com.mmaricic.worm.exceptions.EntityIdException;
 import com.mmaricic.worm.helpers.Company;
+import com.mmaricic.worm.helpers.SmartCar;
 import com.mmaricic.worm.helpers.User;
 import org.junit.jupiter.api.Test;
 
@@ -216,7 +217,7 @@ class EntityParserTest {
 
 
         EntityParser ep = new EntityParser();
-        User user = ep.convertRowToEntity(User.class, entityElements, null);
+        User user = ep.convertRowToEntity(User.class, entityElements);
 
         assertEquals((Object) 2L, user.getId());
         assertEquals("dummy", user.getAddress());
@@ -242,7 +243,7 @@ class EntityParserTest {
 
 
         EntityParser ep = new EntityParser();
-        Company company = ep.convertRowToEntity(Company.class, entityElements, null);
+        Company company = ep.convertRowToEntity(Company.class, entityElements);
 
         assertEquals((Object) 1, company.getId());
         Company.Address address = company.getAddress();
@@ -266,4 +267,38 @@ class EntityParserTest {
         assertTrue(ep.isIdAutoGenerated(User.class));
         assertFalse(ep.isIdAutoGenerated(Company.class));
     }
-}
\ No newline at end of file
+
+    @Test
+    void parseInheritedFields() {
+        SmartCar car = new SmartCar();
+        car.id = 7;
+        car.name = "smart car";
+        car.numOfDoors = 2;
+        car.price = 10000.0;
+
+        HashMap<String, Object> expected = new HashMap<>();
+        expected.put("id", 7);
+        expected.put("name", "smart car");
+        expected.put("doors_num", 2);
+        expected.put("price", 10000.0);
+        expected.put("dtype", "sc");
+
+        EntityParser ep = new EntityParser();
+        Map<String, Object> actual = ep.parse(car, true);
+        MapDifference<String, Object> res = Maps.difference(expected, actual);
+        assertTrue(res.areEqual(), res.toString());
+        assertEquals("vehicle", ep.extractTableName(SmartCar.class));
+    }
+
+    @Test
+    void metadataIsSharedPerClass() {
+        EntityMetadata metadata = EntityMetadata.of(User.class);
+
+        assertSame(metadata, EntityMetadata.of(User.class));
+        assertEquals("user", metadata.getTableName());
+        assertEquals("id", metadata.getId().getName());
+        assertTrue(metadata.isIdAutoGenerated());
+        assertEquals(1, metadata.getAssociations().size());
+        assertEquals("cars", metadata.getAssociations().get(0).getName());
+    }
+}
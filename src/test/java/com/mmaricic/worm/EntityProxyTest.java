@@ -0,0 +1,79 @@
+package com.mmaricic.worm;
+
+import com.mmaricic.worm.helpers.Company;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntityProxyTest {
+
+    @Test
+    void proxyClassIsReused() {
+        CountingEntityManager em = new CountingEntityManager();
+        Company first = EntityProxy.create(Company.class, em, "query", 1);
+        Company second = EntityProxy.create(Company.class, em, "query", 2);
+
+        assertSame(first.getClass(), second.getClass());
+        assertEquals(0, em.queries.get());
+        assertEquals("Company 1", first.getName());
+        assertEquals("Company 2", second.getName());
+        assertEquals(2, em.queries.get());
+    }
+
+    @Test
+    void entityIsLoadedOnce() throws Exception {
+        CountingEntityManager em = new CountingEntityManager();
+        EntityProxy<Company> proxy = new EntityProxy<>(Company.class, em, "query", 1);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<Object>> names = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                names.add(executor.submit(() -> {
+                    start.await();
+                    try {
+                        return proxy.intercept(null, Company.class.getMethod("getName"), new Object[0], null);
+                    } catch (Throwable e) {
+                        throw new ExecutionException(e);
+                    }
+                }));
+            }
+            start.countDown();
+            for (Future<Object> name : names) {
+                assertEquals("Company 1", name.get(5, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, em.queries.get());
+        assertTrue(proxy.isInitialized());
+    }
+
+    private static class CountingEntityManager extends EntityManager {
+        private final AtomicInteger queries = new AtomicInteger();
+
+        CountingEntityManager() {
+            super(null);
+        }
+
+        @Override
+        public <T> List<T> preparedQuery(Class<T> entityClass, String sql, Object... args) {
+            queries.incrementAndGet();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            Company company = new Company();
+            company.setId((Integer) args[0]);
+            company.setName("Company " + args[0]);
+            return Collections.singletonList(entityClass.cast(company));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.mmaricic.worm;
+
+import com.mmaricic.worm.associations.entities.Phone;
+import com.mmaricic.worm.associations.entities.User;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntitySnapshotsTest {
+
+    @Test
+    void snapshotsOfUnreachableEntitiesAreReleased() throws Exception {
+        EntityParser parser = new EntityParser();
+        EntitySnapshots snapshots = new EntitySnapshots(parser, new AssociationHandler(null, parser));
+        takeSnapshotsOfUserWithPhone(snapshots);
+        assertEquals(2, snapshots.size());
+
+        for (int i = 0; i < 50 && snapshots.size() > 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(0, snapshots.size());
+    }
+
+    @Test
+    void replacedAssociationsAreChanged() {
+        EntityParser parser = new EntityParser();
+        EntitySnapshots snapshots = new EntitySnapshots(parser, new AssociationHandler(null, parser));
+        User user = new User();
+        user.setId(1L);
+        snapshots.take(user, Collections.emptyMap());
+        assertTrue(snapshots.changedAssociations(user).isEmpty());
+
+        user.setPhones(new ArrayList<>(user.getPhones()));
+        assertEquals(1, snapshots.changedAssociations(user).size());
+    }
+
+    private void takeSnapshotsOfUserWithPhone(EntitySnapshots snapshots) {
+        User user = new User();
+        user.setId(1L);
+        Phone phone = new Phone();
+        phone.setId(2L);
+        phone.setOwner(user);
+        user.getPhones().add(phone);
+        snapshots.take(phone, Collections.singletonMap("owner_id", 1L));
+        snapshots.take(user, Collections.emptyMap());
+    }
+}
@@ -0,0 +1,62 @@
+package com.mmaricic.worm;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryBuilderTest {
+    @Test
+    void insertQueryIsReusedForSameColumns() {
+        Set<String> columns = new LinkedHashSet<>(List.of("name", "email"));
+
+        String first = QueryBuilder.buildInsertQuery("user", columns);
+        String second = QueryBuilder.buildInsertQuery("user", new LinkedHashSet<>(List.of("name", "email")));
+
+        assertEquals("INSERT INTO user (name, email) VALUES (?, ?);", first);
+        assertSame(first, second);
+    }
+
+    @Test
+    void columnOrderIsPartOfTheSignature() {
+        String first = QueryBuilder.buildInsertQuery("user", new LinkedHashSet<>(List.of("name", "email")));
+        String second = QueryBuilder.buildInsertQuery("user", new LinkedHashSet<>(List.of("email", "name")));
+
+        assertEquals("INSERT INTO user (email, name) VALUES (?, ?);", second);
+        assertNotSame(first, second);
+    }
+
+    @Test
+    void updateAndDeleteQueries() {
+        String update = QueryBuilder.buildUpdateQuery("user", new LinkedHashSet<>(List.of("name")), "id");
+        String delete = QueryBuilder.buildDeleteQuery("user", "id");
+
+        assertEquals("UPDATE user SET name=? WHERE id=?;", update);
+        assertEquals("DELETE FROM user WHERE id=?;", delete);
+        assertSame(update, QueryBuilder.buildUpdateQuery("user", new LinkedHashSet<>(List.of("name")), "id"));
+        assertSame(delete, QueryBuilder.buildDeleteQuery("user", "id"));
+    }
+
+    @Test
+    void leastRecentlyUsedStatementsAreDropped() {
+        String hot = QueryBuilder.buildDeleteQuery("hot", "id");
+        for (int i = 0; i < 3000; i++) {
+            QueryBuilder.buildDeleteQuery("table" + i, "id");
+            assertSame(hot, QueryBuilder.buildDeleteQuery("hot", "id"));
+        }
+        assertTrue(QueryBuilder.cachedStatementCount() <= 2048);
+        String newest = QueryBuilder.buildDeleteQuery("newest", "id");
+        assertSame(newest, QueryBuilder.buildDeleteQuery("newest", "id"));
+    }
+
+    @Test
+    void findByIdQueryIsParameterized() {
+        String find = QueryBuilder.buildFindByIdQuery("user", "id");
+
+        assertEquals("SELECT * FROM user WHERE id=?;", find);
+        assertSame(find, QueryBuilder.buildFindByIdQuery("user", "id"));
+    }
+}
@@ -0,0 +1,75 @@
+package com.mmaricic.worm;
+
+import com.mmaricic.worm.helpers.Company;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QueryCacheTest {
+    @Test
+    void tablesAreReadFromTheQuery() {
+        Set<String> tables = QueryCache.tablesOf(
+                "SELECT * FROM companies c JOIN `orm`.`User` u ON u.company_id = c.id WHERE c.id IN " +
+                        "(SELECT company_id FROM phones)");
+
+        assertEquals(Arrays.asList("companies", "user", "phones"), Arrays.asList(tables.toArray()));
+        assertEquals(Collections.singleton("user"), QueryCache.tablesOf("UPDATE User SET name=? WHERE id=?"));
+        assertEquals(Collections.singleton("user"), QueryCache.tablesOf("INSERT INTO User (name) VALUES (?)"));
+    }
+
+    @Test
+    void everyTableOfListsAndSubqueriesIsRead() {
+        assertEquals(Arrays.asList("companies", "flags"), Arrays.asList(QueryCache.tablesOf(
+                "SELECT companies.* FROM companies, flags f WHERE flags.company_id = companies.id").toArray()));
+        assertEquals(Arrays.asList("companies", "user", "phones"), Arrays.asList(QueryCache.tablesOf(
+                "SELECT COUNT(*) FROM (SELECT * FROM companies WHERE name <> 'from x') selected, user " +
+                        "WHERE EXISTS (SELECT 1 FROM phones)").toArray()));
+        assertNull(QueryCache.tablesOf("SELECT * FROM TABLE(numbers()) WHERE id = ?"));
+        assertNull(QueryCache.tablesOf("SELECT * FROM"));
+    }
+
+    @Test
+    void invalidatingAllTablesDropsEveryResult() {
+        QueryCache cache = new QueryCache(10);
+        String sql = "SELECT * FROM companies";
+        Set<String> tables = QueryCache.tablesOf(sql);
+        cache.put(Company.class, sql, new Object[0], tables, cache.versionsOf(tables), Collections.singletonList(1));
+
+        cache.invalidate(QueryCache.ALL_TABLES);
+        assertNull(cache.get(Company.class, sql, new Object[0]));
+    }
+
+    @Test
+    void writesToReadTablesInvalidateResults() {
+        QueryCache cache = new QueryCache(10);
+        String sql = "SELECT * FROM companies WHERE name=?";
+        Set<String> tables = QueryCache.tablesOf(sql);
+        List<Object> ids = Arrays.asList(2, 1);
+
+        cache.put(Company.class, sql, new Object[]{"a"}, tables, cache.versionsOf(tables), ids);
+        assertEquals(ids, cache.get(Company.class, sql, new Object[]{"a"}));
+        assertNull(cache.get(Company.class, sql, new Object[]{"b"}));
+
+        cache.invalidate("User");
+        assertEquals(ids, cache.get(Company.class, sql, new Object[]{"a"}));
+        cache.invalidate("Companies");
+        assertNull(cache.get(Company.class, sql, new Object[]{"a"}));
+    }
+
+    @Test
+    void resultsInvalidatedWhileRunningAreNotStored() {
+        QueryCache cache = new QueryCache(10);
+        String sql = "SELECT * FROM companies";
+        Set<String> tables = QueryCache.tablesOf(sql);
+        long[] versions = cache.versionsOf(tables);
+
+        cache.invalidate("companies");
+        cache.put(Company.class, sql, new Object[0], tables, versions, Collections.singletonList(1));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,71 @@
+package com.mmaricic.worm;
+
+import com.mmaricic.worm.helpers.Company;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RowMapperTest {
+
+    @Test
+    void mappersAreReusedForTheSameColumns() throws Exception {
+        RowMapper<Company> mapper = RowMapper.of(Company.class, metaData("id", "name"), Collections.emptyList());
+
+        assertSame(mapper, RowMapper.of(Company.class, metaData("id", "name"), Collections.emptyList()));
+        assertNotSame(mapper, RowMapper.of(Company.class, metaData("id", "name", "city"), Collections.emptyList()));
+        assertNotSame(mapper, RowMapper.of(Company.class, metaData("name", "id"), Collections.emptyList()));
+        assertNotSame(mapper, RowMapper.of(Company.class, metaData("id", "name"), Collections.singletonList("name")));
+    }
+
+    @Test
+    void leastRecentlyUsedMappersAreDropped() throws Exception {
+        RowMapper<Company> mapper = RowMapper.of(Company.class, metaData("id", "country"), Collections.emptyList());
+        RowMapper<Company> unused = RowMapper.of(Company.class, metaData("id", "city"), Collections.emptyList());
+        for (int i = 0; i < 100; i++) {
+            RowMapper.of(Company.class, metaData("id", "column" + i), Collections.emptyList());
+            if (i % 10 == 0)
+                assertSame(mapper, RowMapper.of(Company.class, metaData("id", "country"), Collections.emptyList()));
+        }
+
+        assertNotSame(unused, RowMapper.of(Company.class, metaData("id", "city"), Collections.emptyList()));
+    }
+
+    @Test
+    void prefixedLabelsAreMatchedIgnoringCase() throws Exception {
+        RowMapper<Company> mapper = RowMapper.of(Company.class, metaData("ID", "NAME", "J0__ID", "J0__NAME"),
+                Collections.emptyList(), "j0__");
+        List<Object> row = Arrays.asList(1, "root", 2, "joined");
+        ResultSet resultSet = (ResultSet) Proxy.newProxyInstance(RowMapperTest.class.getClassLoader(),
+                new Class<?>[]{ResultSet.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("getInt") || method.getName().equals("getString"))
+                        return row.get((Integer) args[0] - 1);
+                    if (method.getName().equals("wasNull"))
+                        return false;
+                    throw new UnsupportedOperationException(method.getName());
+                });
+
+        Company company = mapper.map(resultSet).getKey();
+
+        assertEquals(2, company.getId());
+        assertEquals("joined", company.getName());
+    }
+
+    private static ResultSetMetaData metaData(String... labels) {
+        List<String> columns = Arrays.asList(labels);
+        return (ResultSetMetaData) Proxy.newProxyInstance(RowMapperTest.class.getClassLoader(),
+                new Class<?>[]{ResultSetMetaData.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("getColumnCount"))
+                        return columns.size();
+                    if (method.getName().equals("getColumnLabel"))
+                        return columns.get((Integer) args[0] - 1);
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
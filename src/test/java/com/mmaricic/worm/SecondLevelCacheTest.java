@@ -0,0 +1,96 @@
+package com.mmaricic.worm;
+
+import com.mmaricic.worm.SecondLevelCache.EvictionPolicy;
+import com.mmaricic.worm.helpers.Company;
+import com.mmaricic.worm.helpers.User;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SecondLevelCacheTest {
+    @Test
+    void onlyRegisteredClassesAreCacheable() {
+        SecondLevelCache cache = new SecondLevelCache(EvictionPolicy.LRU, 10).cache(Company.class);
+
+        assertTrue(cache.isCacheable(Company.class));
+        assertFalse(cache.isCacheable(User.class));
+    }
+
+    @Test
+    void lruEvictsLeastRecentlyUsed() {
+        SecondLevelCache cache = new SecondLevelCache(EvictionPolicy.LRU, 2);
+        put(cache, 1);
+        put(cache, 2);
+        assertNotNull(cache.get(Company.class, 1));
+        put(cache, 3);
+
+        assertNotNull(cache.get(Company.class, 1));
+        assertNull(cache.get(Company.class, 2));
+        assertNotNull(cache.get(Company.class, 3));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void lfuEvictsLeastFrequentlyUsed() {
+        SecondLevelCache cache = new SecondLevelCache(EvictionPolicy.LFU, 2);
+        put(cache, 1);
+        put(cache, 2);
+        cache.get(Company.class, 2);
+        cache.get(Company.class, 2);
+        cache.get(Company.class, 1);
+        put(cache, 3);
+
+        assertNull(cache.get(Company.class, 1));
+        assertNotNull(cache.get(Company.class, 2));
+        assertNotNull(cache.get(Company.class, 3));
+    }
+
+    @Test
+    void expiredEntriesAreMissing() throws Exception {
+        SecondLevelCache cache = new SecondLevelCache(EvictionPolicy.LRU, 10).timeToLive(Duration.ofMillis(200));
+        put(cache, 1);
+        assertNotNull(cache.get(Company.class, 1L));
+
+        Thread.sleep(300);
+        assertNull(cache.get(Company.class, 1));
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    void removeAndEvict() {
+        SecondLevelCache cache = new SecondLevelCache(EvictionPolicy.LFU, 10);
+        put(cache, 1);
+        put(cache, 2);
+        put(cache, 3);
+
+        cache.remove(Company.class, 1);
+        assertNull(cache.get(Company.class, 1));
+        cache.evict(Company.class);
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void entitiesReadBeforeInvalidationAreNotCached() {
+        SecondLevelCache cache = new SecondLevelCache(EvictionPolicy.LRU, 10);
+        Company company = new Company();
+        company.setId(1);
+        long stamp = cache.stamp();
+        cache.remove(Company.class, 1);
+        cache.put(company, 1, Collections.singletonMap("id", 1), Collections.emptyMap(), stamp);
+        assertNull(cache.get(Company.class, 1));
+
+        cache.put(company, 1, Collections.singletonMap("id", 1), Collections.emptyMap(), cache.stamp());
+        assertNotNull(cache.get(Company.class, 1));
+    }
+
+    private void put(SecondLevelCache cache, int id) {
+        Company company = new Company();
+        company.setId(id);
+        cache.put(company, id, Collections.singletonMap("id", id), Collections.emptyMap(), cache.stamp());
+    }
+}
@@ -7,6 +7,7 @@ import com.mmaricic.worm.associations.entities.Company;
 import com.mmaricic.worm.associations.entities.Phone;
 import com.mmaricic.worm.associations.entities.User;
 import com.mmaricic.worm.exceptions.EntityException;
+import com.mmaricic.worm.exceptions.QueryException;
 import org.apache.commons.dbcp2.BasicDataSource;
 import org.junit.jupiter.api.AfterAll;
 import org.junit.jupiter.api.BeforeAll;
@@ -17,6 +18,8 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -275,4 +278,134 @@ public class AssociationHandlerTest {
         res = em.query("SELECT * FROM users_addresses WHERE address_id=" + newAddress.getId());
         assertEquals(0, res.size());
     }
+
+    @Test
+    void manyToManyLinksAreSynchronized() {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+
+        User user = new User("linked user");
+        for (int i = 0; i < 5; i++) {
+            user.addAddress(new Address("street " + i, "Belgrade", "Serbia"));
+        }
+        em.save(user);
+        String links = "SELECT * FROM users_addresses WHERE user_id=" + user.getId();
+        assertEquals(5, em.query(links).size());
+
+        Address removed = user.getAddresses().get(0);
+        user.removeAddress(removed);
+        user.removeAddress(user.getAddresses().get(0));
+        user.addAddress(new Address("street 5", "Nis", "Serbia"));
+        em.update(user);
+
+        List<Map<String, Object>> res = em.query(links);
+        assertEquals(4, res.size());
+        assertTrue(res.stream().noneMatch(link -> ((Number) link.get("address_id")).longValue() == removed.getId()));
+        assertEquals(4, em.find(User.class, user.getId()).getAddresses().size());
+
+        em.delete(user);
+        assertEquals(0, em.query(links).size());
+    }
+
+    @Test
+    void batchFetch() {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+        em.setBatchFetchSize(2);
+
+        User first = new User("batch first");
+        first.addPhone(new Phone("111"));
+        first.addPhone(new Phone("222"));
+        User second = new User("batch second");
+        second.addPhone(new Phone("333"));
+        User third = new User("batch third");
+        Address address = new Address("batch street", "Belgrade", "Serbia");
+        first.addAddress(address);
+        third.addAddress(address);
+        em.save(first);
+        em.save(second);
+        em.save(third);
+
+        List<User> users = em.query("SELECT * FROM user WHERE name LIKE 'batch%' ORDER BY id", User.class);
+
+        assertEquals(3, users.size());
+        assertEquals(2, users.get(0).getPhones().size());
+        assertEquals("111", users.get(0).getPhones().get(0).getNumber());
+        assertSame(users.get(0), users.get(0).getPhones().get(0).getOwner());
+        assertEquals(1, users.get(1).getPhones().size());
+        assertEquals("333", users.get(1).getPhones().get(0).getNumber());
+        assertEquals(0, users.get(2).getPhones().size());
+        assertEquals(0, users.get(1).getAddresses().size());
+        assertSame(users.get(0).getAddresses().get(0), users.get(2).getAddresses().get(0));
+        assertEquals("batch street", users.get(2).getAddresses().get(0).getStreet());
+
+        em.delete(first);
+        em.delete(second);
+        em.delete(third);
+    }
+
+    @Test
+    void streamInTransaction() {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+        em.setStreamFetchSize(2);
+
+        User first = new User("stream first");
+        first.addPhone(new Phone("444"));
+        User second = new User("stream second");
+        second.addPhone(new Phone("555"));
+        User third = new User("stream third");
+        em.save(first);
+        em.save(second);
+        em.save(third);
+
+        em.begin();
+        List<User> users;
+        try (Stream<User> stream = em.stream(User.class, "SELECT * FROM user WHERE name LIKE 'stream%' ORDER BY id")) {
+            users = stream.collect(Collectors.toList());
+        }
+        em.commit();
+
+        assertEquals(3, users.size());
+        assertEquals("444", users.get(0).getPhones().get(0).getNumber());
+        assertEquals(first.getId(), users.get(0).getPhones().get(0).getOwner().getId());
+        assertEquals("555", users.get(1).getPhones().get(0).getNumber());
+        assertEquals(0, users.get(2).getPhones().size());
+
+        em.delete(first);
+        em.delete(second);
+        em.delete(third);
+    }
+
+    @Test
+    void joinFetch() {
+        EntityManager em = EntityManagerFactory.getEntityManager();
+
+        User ceo = new User("join ceo");
+        em.save(ceo);
+        Company company = new Company("join company");
+        company.setCEO(ceo);
+        company.setPhoneNumber(new Phone("join 123"));
+        em.save(company);
+        Company noCeo = new Company("join no ceo");
+        em.save(noCeo);
+
+        List<Company> companies = em.find(Company.class)
+                .fetch("CEO")
+                .fetch("phoneNumber")
+                .where("company.name LIKE 'join%'")
+                .orderBy("id");
+
+        assertEquals(2, companies.size());
+        assertEquals(ceo.getId(), companies.get(0).getCEO().getId());
+        assertEquals("join ceo", companies.get(0).getCEO().getName());
+        assertEquals("join 123", companies.get(0).getPhoneNumber().getNumber());
+        assertSame(companies.get(0), companies.get(0).getPhoneNumber().getCompany());
+        assertNull(companies.get(1).getCEO());
+        assertNull(companies.get(1).getPhoneNumber());
+
+        assertThrows(QueryException.class, () -> em.find(Company.class).fetch("employees"));
+        assertThrows(QueryException.class, () -> em.find(Company.class).fetch("unknown"));
+
+        em.delete(company);
+        em.delete(noCeo);
+        em.delete(ceo);
+    }
 }
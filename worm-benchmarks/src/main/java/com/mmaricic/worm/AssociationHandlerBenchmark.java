@@ -0,0 +1,74 @@
+package com.mmaricic.worm;
+
+import com.mmaricic.worm.associations.entities.Address;
+import com.mmaricic.worm.associations.entities.Phone;
+import com.mmaricic.worm.associations.entities.User;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads users together with their phones (one-to-many) and addresses (many-to-many).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+public class AssociationHandlerBenchmark {
+    @Param({"10", "100"})
+    public int users;
+
+    private EntityManager em;
+    private AssociationHandler associationHandler;
+    private List<Long> userIds;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        BenchmarkDatabase.start();
+        em = EntityManagerFactory.getEntityManager();
+        associationHandler = new AssociationHandler(em, new EntityParser());
+
+        List<Address> addresses = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            addresses.add(new Address("Street " + i, "Belgrade", "Serbia"));
+        }
+        userIds = new ArrayList<>();
+        for (int i = 0; i < users; i++) {
+            User user = new User("User " + i);
+            user.addPhone(new Phone("06" + i));
+            user.addPhone(new Phone("07" + i));
+            user.addAddress(addresses.get(i % addresses.size()));
+            user.addAddress(addresses.get((i + 1) % addresses.size()));
+            em.save(user);
+            userIds.add(user.getId());
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        BenchmarkDatabase.stop();
+    }
+
+    @Benchmark
+    public List<User> query() {
+        return em.query("SELECT * FROM user;", User.class);
+    }
+
+    @Benchmark
+    public List<AbstractMap.SimpleEntry<User, Map<String, Object>>> fetchAssociations() {
+        List<AbstractMap.SimpleEntry<User, Map<String, Object>>> rows = new ArrayList<>(userIds.size());
+        for (Long id : userIds) {
+            User user = new User();
+            user.setId(id);
+            Map<String, Object> foreignKeys = new HashMap<>();
+            foreignKeys.put("company_id", null);
+            rows.add(new AbstractMap.SimpleEntry<>(user, foreignKeys));
+        }
+        associationHandler.fetchAssociations(rows, Collections.emptySet());
+        return rows;
+    }
+}
@@ -0,0 +1,56 @@
+package com.mmaricic.worm;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * In-memory H2 database in MySQL mode with the tables of the test entities, shared by all benchmarks of a fork.
+ */
+class BenchmarkDatabase {
+    static final String URL =
+            "jdbc:h2:mem:worm;MODE=MySQL;DATABASE_TO_LOWER=TRUE;NON_KEYWORDS=USER,NUMBER;DB_CLOSE_DELAY=-1";
+    private static final String USERNAME = "sa";
+    private static final String PASSWORD = "";
+
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS companies (id INT PRIMARY KEY, name VARCHAR(255), founding_date DATE, " +
+                    "street_name VARCHAR(255), house_number INT, city VARCHAR(255), country VARCHAR(255))",
+            "CREATE TABLE IF NOT EXISTS user (id BIGINT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255), " +
+                    "company_id BIGINT)",
+            "CREATE TABLE IF NOT EXISTS phone (id BIGINT AUTO_INCREMENT PRIMARY KEY, number VARCHAR(255), " +
+                    "owner_id BIGINT, company_id BIGINT)",
+            "CREATE TABLE IF NOT EXISTS company (id BIGINT AUTO_INCREMENT PRIMARY KEY, name VARCHAR(255), " +
+                    "ceo_id BIGINT)",
+            "CREATE TABLE IF NOT EXISTS address (id BIGINT AUTO_INCREMENT PRIMARY KEY, street VARCHAR(255), " +
+                    "city VARCHAR(255), country VARCHAR(255))",
+            "CREATE TABLE IF NOT EXISTS users_addresses (user_id BIGINT, address_id BIGINT)"
+    };
+
+    private static final String[] TABLES = {"companies", "user", "phone", "company", "address", "users_addresses"};
+
+    static void start() throws SQLException {
+        try (Connection conn = DriverManager.getConnection(URL, USERNAME, PASSWORD);
+             Statement stm = conn.createStatement()) {
+            for (String ddl : SCHEMA) {
+                stm.executeUpdate(ddl);
+            }
+        }
+        EntityManagerFactory.configureDatabase("org.h2.Driver", URL, USERNAME, PASSWORD);
+    }
+
+    static void clear() throws SQLException {
+        try (Connection conn = DriverManager.getConnection(URL, USERNAME, PASSWORD);
+             Statement stm = conn.createStatement()) {
+            for (String table : TABLES) {
+                stm.executeUpdate("DELETE FROM " + table);
+            }
+        }
+    }
+
+    static void stop() throws SQLException {
+        clear();
+        EntityManagerFactory.removeConfiguration();
+    }
+}
@@ -0,0 +1,70 @@
+package com.mmaricic.worm;
+
+import com.mmaricic.worm.helpers.Company;
+import org.openjdk.jmh.annotations.*;
+
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "--add-opens=java.base/java.lang=ALL-UNNAMED")
+public class EntityManagerBenchmark {
+    private static final int SEEDED_COMPANIES = 1000;
+
+    private EntityManager em;
+    private int nextId;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        BenchmarkDatabase.start();
+        em = EntityManagerFactory.getEntityManager();
+        for (int id = 1; id <= SEEDED_COMPANIES; id++) {
+            em.save(company(id));
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void resetIds() {
+        nextId = SEEDED_COMPANIES + 1;
+    }
+
+    @TearDown(Level.Iteration)
+    public void removeSaved() {
+        em.executeUpdate("DELETE FROM companies WHERE id>?;", SEEDED_COMPANIES);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        BenchmarkDatabase.stop();
+    }
+
+    @Benchmark
+    public boolean save() {
+        return em.save(company(nextId++));
+    }
+
+    @Benchmark
+    public Company find() {
+        return em.find(Company.class, ThreadLocalRandom.current().nextInt(1, SEEDED_COMPANIES + 1));
+    }
+
+    private static Company company(int id) {
+        Company company = new Company();
+        company.setId(id);
+        company.setName("Company " + id);
+        company.setFoundingDate(new Date(0));
+        Company.Address address = new Company.Address();
+        address.setStreetName("Street " + id);
+        address.setHouseNumber(id);
+        address.setCity("Belgrade");
+        address.setCountry("Serbia");
+        company.setAddress(address);
+        return company;
+    }
+}
@@ -0,0 +1,45 @@
+package com.mmaricic.worm;
+
+import com.mmaricic.worm.helpers.Company;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityParserBenchmark {
+    private final EntityParser parser = new EntityParser();
+    private Company company;
+    private Map<String, Object> row;
+
+    @Setup
+    public void setUp() {
+        company = new Company();
+        company.setId(1);
+        company.setName("Company");
+        company.setFoundingDate(new Date());
+        Company.Address address = new Company.Address();
+        address.setStreetName("Main street");
+        address.setHouseNumber(12);
+        address.setCity("Belgrade");
+        address.setCountry("Serbia");
+        company.setAddress(address);
+        row = parser.parse(company, true);
+    }
+
+    @Benchmark
+    public Map<String, Object> parse() {
+        return parser.parse(company, true);
+    }
+
+    @Benchmark
+    public Company convertRowToEntity() {
+        return parser.convertRowToEntity(Company.class, row);
+    }
+}
@@ -0,0 +1,47 @@
+package com.mmaricic.worm;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueryBuilderBenchmark {
+    private final Set<String> columns = new LinkedHashSet<>();
+
+    @Setup
+    public void setUp() {
+        columns.add("name");
+        columns.add("founding_date");
+        columns.add("street_name");
+        columns.add("house_number");
+        columns.add("city");
+        columns.add("country");
+    }
+
+    @Benchmark
+    public String insert() {
+        return QueryBuilder.buildInsertQuery("companies", columns);
+    }
+
+    @Benchmark
+    public String update() {
+        return QueryBuilder.buildUpdateQuery("companies", columns, "id");
+    }
+
+    @Benchmark
+    public String findById() {
+        return QueryBuilder.buildFindByIdQuery("companies", "id");
+    }
+
+    @Benchmark
+    public String selectIn() {
+        return QueryBuilder.buildSelectInQuery("companies", "*", "id", 64);
+    }
+}